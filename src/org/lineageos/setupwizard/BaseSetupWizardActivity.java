@@ -45,8 +45,8 @@ import android.content.IntentFilter;
 import android.content.res.TypedArray;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.os.UserHandle;
-import android.os.UserManager;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.View;
@@ -60,8 +60,22 @@ import com.google.android.setupcompat.util.WizardManagerHelper;
 import com.google.android.setupdesign.GlifLayout;
 
 import org.lineageos.setupwizard.NavigationLayout.NavigationBarListener;
+import org.lineageos.setupwizard.util.CaptivePortalProbe;
+import org.lineageos.setupwizard.util.ComponentStateEngine;
+import org.lineageos.setupwizard.util.DeviceCapabilities;
+import org.lineageos.setupwizard.util.MobileDataWriter;
+import org.lineageos.setupwizard.util.NetworkMonitor;
+import org.lineageos.setupwizard.util.PhoneMonitor;
+import org.lineageos.setupwizard.util.ReadinessGates;
+import org.lineageos.setupwizard.util.ReadinessHistory;
 import org.lineageos.setupwizard.util.SetupWizardUtils;
+import org.lineageos.setupwizard.util.StartupProfiler;
+import org.lineageos.setupwizard.util.TaskScheduler;
+import org.lineageos.setupwizard.wizardmanager.WizardAction;
+import org.lineageos.setupwizard.wizardmanager.WizardNavigator;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.List;
 
 public abstract class BaseSetupWizardActivity extends Activity implements NavigationBarListener {
@@ -91,6 +105,12 @@ public abstract class BaseSetupWizardActivity extends Activity implements Naviga
     protected int mResultCode = 0;
     private Intent mResultData;
 
+    /**
+     * Asynchronous work of the screen, cancelled when it is destroyed.
+     */
+    protected final TaskScheduler.Scope mTasks =
+            TaskScheduler.getInstance().newScope(getClass().getSimpleName());
+
     private final BroadcastReceiver finishReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -142,6 +162,8 @@ public abstract class BaseSetupWizardActivity extends Activity implements Naviga
             logActivityState("onResume");
         }
         super.onResume();
+        WizardNavigator.onActionResumed(this, getIntent());
+        StartupProfiler.onScreenResumed(this);
         if (mIsGoingBack) {
             if (!mIsExiting) {
                 applyBackwardTransition(getTransition());
@@ -173,6 +195,7 @@ public abstract class BaseSetupWizardActivity extends Activity implements Naviga
             logActivityState("onDestroy");
         }
         unregisterReceiver(finishReceiver);
+        mTasks.cancel();
         super.onDestroy();
     }
 
@@ -339,6 +362,8 @@ public abstract class BaseSetupWizardActivity extends Activity implements Naviga
                     getResultName(requestCode, resultCode) + ")");
         }
         mIsGoingBack = true;
+        // The next action is started for NEXT_REQUEST and returns RESULT_CANCELED when the user
+        // comes back to this screen. A forward result passed up by a chained screen moves on.
         if (requestCode != NEXT_REQUEST || resultCode != RESULT_CANCELED) {
             if (requestCode == EMERGENCY_DIAL_ACTIVITY_REQUEST |
                     requestCode == ACCESSIBILITY_SETTINGS_ACTIVITY_REQUEST) {
@@ -428,13 +453,22 @@ public abstract class BaseSetupWizardActivity extends Activity implements Naviga
         if (LOGV) {
             Log.v(TAG, "sendActionResults resultCode=" + mResultCode + " data=" + mResultData);
         }
+        final String scriptUri = getIntent().getStringExtra(EXTRA_SCRIPT_URI);
         Intent intent = new Intent(ACTION_NEXT);
-        intent.putExtra(EXTRA_SCRIPT_URI, getIntent().getStringExtra(EXTRA_SCRIPT_URI));
+        intent.putExtra(EXTRA_SCRIPT_URI, scriptUri);
         intent.putExtra(EXTRA_ACTION_ID, getIntent().getStringExtra(EXTRA_ACTION_ID));
         intent.putExtra(EXTRA_RESULT_CODE, mResultCode);
         if (!(mResultData == null || mResultData.getExtras() == null)) {
             intent.putExtras(mResultData.getExtras());
         }
+        intent.putExtra(WizardNavigator.EXTRA_TRANSITION_START, SystemClock.elapsedRealtime());
+        if (scriptUri != null) {
+            // Resolve the next action here rather than through the WizardManager activity.
+            intent = WizardNavigator.getNextIntent(this, intent);
+            if (intent == null) {
+                return;
+            }
+        }
         startActivityForResult(intent, NEXT_REQUEST);
     }
 
@@ -510,7 +544,32 @@ public abstract class BaseSetupWizardActivity extends Activity implements Naviga
     }
 
     public boolean hasMultipleUsers() {
-        return ((UserManager) getSystemService(USER_SERVICE)).getUsers().size() > 1;
+        return DeviceCapabilities.get(this).hasMultipleUsers();
+    }
+
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        writer.println(prefix + "SetupWizard state:");
+        final String innerPrefix = prefix + "  ";
+        writer.println(innerPrefix + "WizardAction uriParses=" + WizardAction.getUriParseCount()
+                + " intentCopies=" + WizardAction.getIntentCopyCount());
+        WizardNavigator.dump(innerPrefix, writer);
+        ComponentStateEngine.getInstance(this).dump(innerPrefix, writer);
+        if (SetupWizardApp.getStartupInitializer() != null) {
+            SetupWizardApp.getStartupInitializer().dump(innerPrefix, writer);
+        }
+        StartupProfiler.dump(innerPrefix, writer);
+        TaskScheduler.getInstance().dump(innerPrefix, writer);
+        DeviceCapabilities.dump(innerPrefix, writer);
+        PhoneMonitor.getInstance().dump(innerPrefix, writer);
+        ReadinessGates.dump(innerPrefix, writer);
+        ReadinessHistory.dump(innerPrefix, writer);
+        MobileDataWriter.dump(innerPrefix, writer);
+        CaptivePortalProbe.dump(innerPrefix, writer);
+        writer.println(innerPrefix + "NetworkMonitor callbacks="
+                + NetworkMonitor.getInstance().getCallbackCount()
+                + " state=" + NetworkMonitor.getInstance().getState());
     }
 
     protected void logActivityState(String prefix) {
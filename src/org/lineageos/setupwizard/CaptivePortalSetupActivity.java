@@ -19,115 +19,76 @@ package org.lineageos.setupwizard;
 
 import static org.lineageos.setupwizard.SetupWizardApp.REQUEST_CODE_SETUP_CAPTIVE_PORTAL;
 
-import android.content.Context;
 import android.content.Intent;
 import android.net.ConnectivityManager;
-import android.os.AsyncTask;
-import android.util.Log;
+import android.net.Network;
+
+import org.lineageos.setupwizard.util.CaptivePortalProbe;
+import org.lineageos.setupwizard.util.NetworkMonitor;
 
-import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.util.Random;
 
 public class CaptivePortalSetupActivity extends WrapperSubBaseActivity {
 
     public static final String TAG = CaptivePortalSetupActivity.class.getSimpleName();
 
-    private static final int CAPTIVE_PORTAL_SOCKET_TIMEOUT_MS = 10000;
+    private CaptivePortalProbe mProbe;
+    private Network mNetwork;
 
-    private URL mCaptivePortalUrl;
+    private final CaptivePortalProbe.Listener mProbeListener = this::onCaptivePortalResult;
 
     @Override
-    protected void onStartSubactivity() {
-        ConnectivityManager connectivity = getSystemService(ConnectivityManager.class);
-
-        try {
-            mCaptivePortalUrl = new URL(connectivity.getCaptivePortalServerUrl());
-        } catch (MalformedURLException e) {
-            Log.e(TAG, "Not a valid url" + e);
-        }
-        CheckForCaptivePortalTask
-                .checkForCaptivePortal(mCaptivePortalUrl, this, true);
+    public void onStart() {
+        super.onStart();
+        NetworkMonitor.getInstance().acquire();
     }
 
-    private static class CheckForCaptivePortalTask extends AsyncTask<Void, Void, Boolean> {
-
-        private final URL captivePortalUrl;
-        private final CaptivePortalSetupActivity captivePortalSetupActivity;
-        private static CheckForCaptivePortalTask sTask = null;
-        private String responseToken;
+    @Override
+    protected void onStop() {
+        super.onStop();
+        NetworkMonitor.getInstance().release();
+    }
 
-        public CheckForCaptivePortalTask(URL captivePortalUrl,
-                CaptivePortalSetupActivity captivePortalSetupActivity) {
-            this.captivePortalUrl = captivePortalUrl;
-            this.captivePortalSetupActivity = captivePortalSetupActivity;
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mProbe != null) {
+            mProbe.removeListener(mProbeListener);
         }
+    }
 
-        public static void checkForCaptivePortal(URL captivePortalUrl,
-                CaptivePortalSetupActivity captivePortalSetupActivity,
-                boolean cancelAndRecreateIfRunning) {
-            if (sTask == null || sTask.getStatus() == Status.FINISHED) {
-                sTask = new CheckForCaptivePortalTask(captivePortalUrl, captivePortalSetupActivity);
-                sTask.execute();
-
-            } else if (cancelAndRecreateIfRunning) {
-                sTask.cancel(true);
-                sTask = new CheckForCaptivePortalTask(captivePortalUrl, captivePortalSetupActivity);
-                sTask.execute();
-            }
+    @Override
+    protected void onStartSubactivity() {
+        if (mProbe != null) {
+            mProbe.removeListener(mProbeListener);
         }
+        // Usually probed already, while the user was still picking the network.
+        mNetwork = NetworkMonitor.getInstance().getState().getNetwork();
+        mProbe = CaptivePortalProbe.probe(this, mNetwork);
+        mProbe.addListener(mProbeListener, getMainExecutor());
+    }
 
-        @Override
-        protected Boolean doInBackground(Void... params) {
-            if (captivePortalUrl == null) return false;
-            HttpURLConnection urlConnection = null;
-            try {
-                urlConnection = (HttpURLConnection) captivePortalUrl.openConnection();
-                urlConnection.setInstanceFollowRedirects(false);
-                urlConnection.setConnectTimeout(CAPTIVE_PORTAL_SOCKET_TIMEOUT_MS);
-                urlConnection.setReadTimeout(CAPTIVE_PORTAL_SOCKET_TIMEOUT_MS);
-                urlConnection.setUseCaches(false);
-                urlConnection.getInputStream();
-                // We got a valid response, but not from the real google
-                final int responseCode = urlConnection.getResponseCode();
-                if (responseCode == 408 || responseCode == 504) {
-                    // If we timeout here, we'll try and go through captive portal login
-                    return true;
-                }
-                return urlConnection.getResponseCode() != 204;
-            } catch (IOException e) {
-                Log.e(TAG, "Captive portal check - probably not a portal: exception "
-                        + e);
-                return false;
-            } finally {
-                if (urlConnection != null) {
-                    urlConnection.disconnect();
-                }
-            }
+    @Override
+    protected void onSubactivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode == REQUEST_CODE_SETUP_CAPTIVE_PORTAL && mNetwork != null) {
+            // The user went through the portal, its verdict is stale.
+            CaptivePortalProbe.forget(mNetwork);
         }
+        super.onSubactivityResult(requestCode, resultCode, data);
+    }
 
-        @Override
-        protected void onPostExecute(Boolean isPortal) {
-            if (isPortal) {
-                final Context context = captivePortalSetupActivity.getApplicationContext();
-                responseToken = String.valueOf(new Random().nextLong());
-                final Intent intent = new Intent(
-                        ConnectivityManager.ACTION_CAPTIVE_PORTAL_SIGN_IN);
-                intent.putExtra(Intent.EXTRA_TEXT, responseToken);
-                intent.putExtra("status_bar_color",
-                        context.getResources().getColor(R.color.primary_dark));
-                intent.putExtra("action_bar_color", context.getResources().getColor(
-                        R.color.primary_dark));
-                intent.putExtra("progress_bar_color", context.getResources().getColor(
-                        R.color.accent));
-                captivePortalSetupActivity.startSubactivity(intent,
-                        REQUEST_CODE_SETUP_CAPTIVE_PORTAL);
-            } else {
-                captivePortalSetupActivity.finishAction(RESULT_OK);
-                captivePortalSetupActivity.finish();
-            }
+    private void onCaptivePortalResult(boolean isPortal) {
+        if (isPortal) {
+            final String responseToken = String.valueOf(new Random().nextLong());
+            final Intent intent = new Intent(ConnectivityManager.ACTION_CAPTIVE_PORTAL_SIGN_IN);
+            intent.putExtra(Intent.EXTRA_TEXT, responseToken);
+            intent.putExtra("status_bar_color", getResources().getColor(R.color.primary_dark));
+            intent.putExtra("action_bar_color", getResources().getColor(R.color.primary_dark));
+            intent.putExtra("progress_bar_color", getResources().getColor(R.color.accent));
+            startSubactivity(intent, REQUEST_CODE_SETUP_CAPTIVE_PORTAL);
+        } else {
+            finishAction(RESULT_OK);
+            finish();
         }
     }
 
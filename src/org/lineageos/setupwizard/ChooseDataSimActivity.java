@@ -18,9 +18,10 @@
 package org.lineageos.setupwizard;
 
 import static org.lineageos.setupwizard.SetupWizardApp.LOGV;
+import static org.lineageos.setupwizard.SetupWizardApp.SIGNAL_LEVEL_NO_SERVICE;
 
 import android.os.Bundle;
-import android.os.Handler;
+import android.os.SystemClock;
 import android.telephony.ServiceState;
 import android.telephony.SignalStrength;
 import android.telephony.SubscriptionInfo;
@@ -38,8 +39,11 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 
 import org.lineageos.setupwizard.util.PhoneMonitor;
-import org.lineageos.setupwizard.util.SetupWizardUtils;
+import org.lineageos.setupwizard.util.ReadinessGate;
+import org.lineageos.setupwizard.util.ReadinessGates;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.List;
 
 public class ChooseDataSimActivity extends BaseSetupWizardActivity {
@@ -48,31 +52,58 @@ public class ChooseDataSimActivity extends BaseSetupWizardActivity {
 
     private ViewGroup mPageView;
     private ProgressBar mProgressBar;
-    private SparseArray<TextView> mNameViews;
-    private SparseArray<ImageView> mSignalViews;
-    private SparseArray<CheckBox> mCheckBoxes;
-    private SparseArray<View> mRows;
+    private SparseArray<SimRow> mSimRows;
 
     private SparseArray<SubscriptionInfo> mSubInfoRecords;
     private SparseArray<SignalStrength> mSignalStrengths;
     private SparseArray<ServiceState> mServiceStates;
 
     private boolean mIsAttached = false;
-    private boolean mRadioReady = false;
 
     private PhoneMonitor mPhoneMonitor;
+    private ReadinessGates mReadinessGates;
 
     private boolean mDisabledForSwitch = false;
-
-    private final Handler mHandler = new Handler();
-
-    private final Runnable mRadioReadyRunnable = () -> {
-        // If we timeout out waiting for the radio, Oh well.
-        if (!mRadioReady) {
-            mRadioReady = true;
-            checkForRadioReady();
+    private int mCheckedSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+
+    private int mRenderCount;
+    private int mViewUpdateCount;
+    private long mViewUpdateSecond;
+    private int mViewUpdatesThisSecond;
+    private int mMaxViewUpdatesPerSecond;
+
+    private ReadinessGate mSimReady;
+    private ReadinessGate mPageReady;
+    private ReadinessGate mDataSubSwitched;
+
+    private final Runnable mPageReadyCallback = this::onPageReady;
+    private final Runnable mDataSubSwitchedCallback = this::onDataSubSwitched;
+
+    /**
+     * The views of a SIM row and what they were last set to, so that a view is only touched
+     * when what it shows changes.
+     */
+    private static final class SimRow {
+        final View mRow;
+        final ImageView mSignalView;
+        final TextView mNameView;
+        final CheckBox mCheckBox;
+
+        // Looked up when the service or SIM state changes, not on every signal change.
+        String mOperatorName;
+        int mSignalLevel = -1;
+        boolean mInService;
+        String mCarrierName;
+        boolean mChecked;
+        boolean mEnabled = true;
+
+        SimRow(View row) {
+            mRow = row;
+            mSignalView = row.findViewById(R.id.signal);
+            mNameView = row.findViewById(R.id.sim_title);
+            mCheckBox = row.findViewById(R.id.enable_check);
         }
-    };
+    }
 
     private final View.OnClickListener mSetDataSimClickListener = view -> {
         SubscriptionInfo subInfoRecord = (SubscriptionInfo) view.getTag();
@@ -93,10 +124,11 @@ public class ChooseDataSimActivity extends BaseSetupWizardActivity {
                     }
                     SubscriptionInfo subInfoRecord =
                             mPhoneMonitor.getActiveSubscriptionInfo(subId);
-                    mRadioReady = SetupWizardUtils.isRadioReady(
-                            ChooseDataSimActivity.this, serviceState);
-                    checkForRadioReady();
+                    if (subInfoRecord == null) {
+                        return;
+                    }
                     mServiceStates.put(subInfoRecord.getSimSlotIndex(), serviceState);
+                    updateOperatorName(subInfoRecord);
                     updateSignalStrength(subInfoRecord);
                 }
 
@@ -118,13 +150,7 @@ public class ChooseDataSimActivity extends BaseSetupWizardActivity {
                                 "subId='" + subId + '\'' +
                                 '}');
                     }
-                    final int currentDataSubId = SubscriptionManager.getDefaultDataSubscriptionId();
-                    if (currentDataSubId != subId) {
-                        updateCurrentDataSub();
-                        hideProgress();
-                        enableViews(true);
-                    }
-                    checkSimChangingState(currentDataSubId, subId);
+                    updateCurrentDataSub();
                 }
 
                 @Override
@@ -136,7 +162,6 @@ public class ChooseDataSimActivity extends BaseSetupWizardActivity {
                                 ", newSubId=" + newSubId +
                                 '}');
                     }
-                    checkSimChangingState(currentSubId, newSubId);
                 }
 
                 @Override
@@ -149,6 +174,9 @@ public class ChooseDataSimActivity extends BaseSetupWizardActivity {
                     }
                     SubscriptionInfo subInfoRecord =
                             mPhoneMonitor.getActiveSubscriptionInfo(subId);
+                    if (subInfoRecord == null) {
+                        return;
+                    }
                     mSignalStrengths.put(subInfoRecord.getSimSlotIndex(), signalStrength);
                     updateSignalStrength(subInfoRecord);
                 }
@@ -161,6 +189,7 @@ public class ChooseDataSimActivity extends BaseSetupWizardActivity {
                                 ", simState=" + simState +
                                 '}');
                     }
+                    updateOperatorNames();
                     updateSignalStrengths();
                     updateCurrentDataSub();
                 }
@@ -171,6 +200,7 @@ public class ChooseDataSimActivity extends BaseSetupWizardActivity {
         super.onCreate(savedInstanceState);
         setNextText(R.string.next);
         mPhoneMonitor = PhoneMonitor.getInstance();
+        mReadinessGates = ReadinessGates.getInstance();
         mPageView = (ViewGroup) findViewById(R.id.page_view);
         mProgressBar = (ProgressBar) findViewById(R.id.progress);
         List<SubscriptionInfo> subInfoRecords = mPhoneMonitor.getActiveSubscriptionInfoList();
@@ -179,12 +209,8 @@ public class ChooseDataSimActivity extends BaseSetupWizardActivity {
         mSubInfoRecords = new SparseArray<>(simCount);
         for (SubscriptionInfo subInfoRecord : subInfoRecords) {
             mSubInfoRecords.put(subInfoRecord.getSimSlotIndex(), subInfoRecord);
-            updateSignalStrength(subInfoRecord);
         }
-        mNameViews = new SparseArray<>(simCount);
-        mSignalViews = new SparseArray<>(simCount);
-        mCheckBoxes = new SparseArray<>(simCount);
-        mRows = new SparseArray<>(simCount);
+        mSimRows = new SparseArray<>(simCount);
         mServiceStates = new SparseArray<>(simCount);
         mSignalStrengths = new SparseArray<>(simCount);
         LayoutInflater inflater = LayoutInflater.from(this);
@@ -194,22 +220,36 @@ public class ChooseDataSimActivity extends BaseSetupWizardActivity {
             SubscriptionInfo subInfoRecord = mSubInfoRecords.valueAt(i);
             simRow.setTag(subInfoRecord);
             simRow.setOnClickListener(mSetDataSimClickListener);
-            int slot = subInfoRecord.getSimSlotIndex();
-            mNameViews.put(slot, (TextView) simRow.findViewById(R.id.sim_title));
-            mSignalViews.put(slot, (ImageView) simRow.findViewById(R.id.signal));
-            mCheckBoxes.put(slot, (CheckBox) simRow.findViewById(R.id.enable_check));
-            mRows.put(slot, simRow);
+            mSimRows.put(subInfoRecord.getSimSlotIndex(), new SimRow(simRow));
             mPageView.addView(inflater.inflate(R.layout.divider, null));
         }
         updateSignalStrengths();
         updateCurrentDataSub();
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        mPhoneMonitor.acquire();
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        mPhoneMonitor.release();
+    }
+
     @Override
     public void onPause() {
         super.onPause();
         mIsAttached = false;
         mPhoneMonitor.removeListener(mSubscriptionStateListener);
+        mPageReady.cancel();
+        mSimReady.cancel();
+        if (mDataSubSwitched != null) {
+            mDataSubSwitched.removeCallback(mDataSubSwitchedCallback);
+            mDataSubSwitched = null;
+        }
     }
 
     @Override
@@ -217,35 +257,53 @@ public class ChooseDataSimActivity extends BaseSetupWizardActivity {
         super.onResume();
         mIsAttached = true;
         mPhoneMonitor.addListener(mSubscriptionStateListener);
-        mRadioReady = SetupWizardUtils.isRadioReady(this, null);
+        updateOperatorNames();
         updateSignalStrengths();
         updateCurrentDataSub();
-        checkForRadioReady();
-        if (mRadioReady) {
-            final int currentDataSub = SubscriptionManager.getDefaultDataSubscriptionId();
-            checkSimChangingState(currentDataSub, currentDataSub);
+        // If we time out waiting for the SIMs, Oh well.
+        mSimReady = ReadinessGate.withTimeout(mReadinessGates.simLoaded(),
+                SetupWizardApp.RADIO_READY_TIMEOUT);
+        mPageReady = ReadinessGate.all("dataSimPage", mReadinessGates.radioPowered(), mSimReady);
+        if (mPageReady.isOpen()) {
+            // Nothing to wait for, the page is there from the first frame.
+            mPageView.setVisibility(View.VISIBLE);
+        } else {
+            enableViews(false);
+            showProgress();
         }
+        mPageReady.whenOpen(mPageReadyCallback);
     }
 
-    private void checkForRadioReady() {
-        if (mRadioReady) {
-            mHandler.removeCallbacks(mRadioReadyRunnable);
-            showPage();
-            final int currentDataSub = SubscriptionManager.getDefaultDataSubscriptionId();
-            checkSimChangingState(currentDataSub, currentDataSub);
-            return;
-        } else {
-            enableViews(false);
+    private void onPageReady() {
+        showPage();
+        waitForDataSub();
+    }
+
+    /**
+     * Holds the page while a default data subscription change is taking effect.
+     */
+    private void waitForDataSub() {
+        if (mDataSubSwitched != null) {
+            mDataSubSwitched.removeCallback(mDataSubSwitchedCallback);
+        }
+        mDataSubSwitched = mReadinessGates.dataSubSwitched();
+        if (!mDataSubSwitched.isOpen()) {
             showProgress();
-            if (!mHandler.hasCallbacks(mRadioReadyRunnable)) {
-                mHandler.postDelayed(mRadioReadyRunnable, SetupWizardApp.RADIO_READY_TIMEOUT);
-            }
+            enableViews(false);
         }
+        mDataSubSwitched.whenOpen(mDataSubSwitchedCallback);
+    }
+
+    private void onDataSubSwitched() {
+        mDataSubSwitched = null;
+        updateCurrentDataSub();
+        hideProgress();
+        enableViews(true);
     }
 
     private void showPage() {
-        mPageView.setVisibility(View.VISIBLE);
-        if (!mPageView.isShown()) {
+        if (mPageView.getVisibility() != View.VISIBLE) {
+            mPageView.setVisibility(View.VISIBLE);
             mPageView.startAnimation(
                     AnimationUtils.loadAnimation(this, R.anim.translucent_enter));
         }
@@ -275,156 +333,138 @@ public class ChooseDataSimActivity extends BaseSetupWizardActivity {
         }
     }
 
-    private void changeDataSub(SubscriptionInfo subInfoRecord) {
-        final int currentDataSub = SubscriptionManager.getDefaultDataSubscriptionId();
-        final int requestedDataSub = subInfoRecord.getSubscriptionId();
-        if (LOGV) {
-            Log.v(TAG, "changeDataSub{" +
-                    "currentDataSub='" + currentDataSub + '\'' +
-                    ", requestedDataSub=" + requestedDataSub +
-                    '}');
+    private void updateOperatorNames() {
+        for (int i = 0; i < mSubInfoRecords.size(); i++) {
+            updateOperatorName(mSubInfoRecords.valueAt(i));
+        }
+    }
+
+    private void updateOperatorName(SubscriptionInfo subInfoRecord) {
+        final SimRow row = mSimRows.get(subInfoRecord.getSimSlotIndex());
+        if (row == null) {
+            return;
         }
-        if (currentDataSub != requestedDataSub) {
-            mPhoneMonitor.changeDataSub(requestedDataSub);
-            setDataSubChecked(subInfoRecord);
-            checkSimChangingState(currentDataSub, requestedDataSub);
+        String name = mPhoneMonitor.getSimOperatorName(subInfoRecord.getSubscriptionId());
+        if (TextUtils.isEmpty(name)) {
+            name = mPhoneMonitor.getNetworkOperatorName(subInfoRecord.getSubscriptionId());
         }
+        row.mOperatorName = name;
     }
 
-    private void checkSimChangingState(int currentDataSubId, int changingToDataSubId) {
+    private void changeDataSub(SubscriptionInfo subInfoRecord) {
+        final int requestedDataSub = subInfoRecord.getSubscriptionId();
         if (LOGV) {
-            Log.v(TAG, "checkSimChangingState{" +
-                    "currentDataSubId='" + currentDataSubId + '\'' +
-                    "changingToDataSubId='" + changingToDataSubId + '\'' +
-                    "mIsAttached='" + mIsAttached + '\'' +
-                    ", mRadioReady=" + mRadioReady +
+            Log.v(TAG, "changeDataSub{" +
+                    "requestedDataSub=" + requestedDataSub +
                     '}');
         }
-        if (mIsAttached && mRadioReady) {
-            if (currentDataSubId != changingToDataSubId) {
-                showProgress();
-                enableViews(false);
-            } else {
-                hideProgress();
-                enableViews(true);
-            }
+        // Nothing happens if it already is the one, a switch on its way takes it in otherwise.
+        mPhoneMonitor.changeDataSub(requestedDataSub);
+        setDataSubChecked(subInfoRecord);
+        if (mIsAttached && mPageReady.isOpen()) {
+            waitForDataSub();
         }
     }
 
     private void setDataSubChecked(SubscriptionInfo subInfoRecord) {
-        if (mIsAttached) {
-            for (int i = 0; i < mCheckBoxes.size(); i++) {
-                int key = mCheckBoxes.keyAt(i);
-                mCheckBoxes.get(key).setChecked(subInfoRecord.getSimSlotIndex() == key);
-            }
-        }
+        mCheckedSubId = subInfoRecord.getSubscriptionId();
+        updateSignalStrengths();
     }
 
     private void updateCurrentDataSub() {
-        if (mIsAttached) {
-            for (int i = 0; i < mSubInfoRecords.size(); i++) {
-                SubscriptionInfo subInfoRecord = mSubInfoRecords.valueAt(i);
-                int slot = subInfoRecord.getSimSlotIndex();
-                mCheckBoxes.get(slot).setChecked(SubscriptionManager.getDefaultDataSubscriptionId()
-                        == subInfoRecord.getSubscriptionId());
-                if (LOGV) {
-                    Log.v(TAG, "updateCurrentDataSub{" +
-                            "currentDataSubId='" + SubscriptionManager
-                            .getDefaultDataSubscriptionId() + '\'' +
-                            "subInfoRecord.getSubscriptionId()='" +
-                            subInfoRecord.getSubscriptionId() +
-                            '}');
-                }
-            }
+        mCheckedSubId = SubscriptionManager.getDefaultDataSubscriptionId();
+        if (LOGV) {
+            Log.v(TAG, "updateCurrentDataSub{" +
+                    "currentDataSubId='" + mCheckedSubId + '\'' +
+                    '}');
         }
+        updateSignalStrengths();
     }
 
     private void enableViews(boolean enabled) {
         mDisabledForSwitch = !enabled;
-        enableRows(enabled);
+        updateSignalStrengths();
         setNextAllowed(enabled);
     }
 
-    private void enableRows(boolean enabled) {
-        for (int i = 0; i < mRows.size(); i++) {
-            final View v = mRows.get(mRows.keyAt(i));
-            v.setEnabled(enabled);
-            final SubscriptionInfo subInfoRecord = (SubscriptionInfo) v.getTag();
-            if (subInfoRecord != null) {
-                updateCarrierText(subInfoRecord);
-            }
+    /**
+     * Brings the row of the given subscription up to date, touching only the views whose
+     * content changed.
+     */
+    private void updateSignalStrength(SubscriptionInfo subInfoRecord) {
+        if (!mIsAttached) {
+            return;
         }
-    }
-
-    private void updateCarrierText(SubscriptionInfo subInfoRecord) {
-        if (mIsAttached) {
-            String name = mPhoneMonitor.getSimOperatorName(subInfoRecord.getSubscriptionId());
-            if (TextUtils.isEmpty(name)) {
-                name = mPhoneMonitor.getNetworkOperatorName(subInfoRecord.getSubscriptionId());
-            }
-            ServiceState serviceState = mServiceStates.get(subInfoRecord.getSimSlotIndex());
-            final int slot = subInfoRecord.getSimSlotIndex();
-            final View v = mRows.get(slot);
-            if (TextUtils.isEmpty(name)) {
-                if (serviceState != null && serviceState.isEmergencyOnly()) {
-                    name = getString(R.string.setup_mobile_data_emergency_only);
-                } else {
-                    name = getString(R.string.setup_mobile_data_no_service);
-                }
-                if (v != null) {
-                    v.setEnabled(false);
-                }
+        final int slot = subInfoRecord.getSimSlotIndex();
+        final SimRow row = mSimRows.get(slot);
+        if (row == null) {
+            return;
+        }
+        mRenderCount++;
+        final SignalStrength signalStrength = mSignalStrengths.get(slot);
+        final boolean inService = hasService(subInfoRecord);
+        int signalLevel = row.mSignalLevel;
+        if (!inService) {
+            signalLevel = SIGNAL_LEVEL_NO_SERVICE;
+        } else if (signalStrength != null) {
+            signalLevel = signalStrength.getLevel();
+        }
+        if (LOGV) {
+            Log.v(TAG, "updateSignalStrength{" +
+                    "signalStrength='" + signalStrength + '\'' +
+                    "signalLevel='" + signalLevel + '\'' +
+                    ", subInfoRecord.getSimSlotIndex() =" + slot +
+                    '}');
+        }
+        String name = row.mOperatorName;
+        final boolean hasName = !TextUtils.isEmpty(name);
+        if (!hasName) {
+            ServiceState serviceState = mServiceStates.get(slot);
+            if (serviceState != null && serviceState.isEmergencyOnly()) {
+                name = getString(R.string.setup_mobile_data_emergency_only);
             } else {
-                if (v != null && !mDisabledForSwitch) {
-                    v.setEnabled(true);
-                }
+                name = getString(R.string.setup_mobile_data_no_service);
             }
-            String formattedName =
-                    getString(R.string.data_sim_name,
-                            slot + 1, name);
-            mNameViews.get(slot).setText(formattedName);
+        }
+        final boolean enabled = hasName && !mDisabledForSwitch;
+        final boolean checked = subInfoRecord.getSubscriptionId() == mCheckedSubId;
+
+        row.mInService = inService;
+        if (signalLevel != row.mSignalLevel) {
+            row.mSignalLevel = signalLevel;
+            row.mSignalView.setImageLevel(signalLevel);
+            onViewUpdated();
+        }
+        if (!name.equals(row.mCarrierName)) {
+            row.mCarrierName = name;
+            row.mNameView.setText(getString(R.string.data_sim_name, slot + 1, name));
+            onViewUpdated();
+        }
+        if (enabled != row.mEnabled) {
+            row.mEnabled = enabled;
+            row.mRow.setEnabled(enabled);
+            onViewUpdated();
+        }
+        if (checked != row.mChecked) {
+            row.mChecked = checked;
+            row.mCheckBox.setChecked(checked);
+            onViewUpdated();
         }
     }
 
-    private void updateSignalStrength(SubscriptionInfo subInfoRecord) {
-        if (mIsAttached) {
-            ImageView signalView = mSignalViews.get(subInfoRecord.getSimSlotIndex());
-            SignalStrength signalStrength = mSignalStrengths.get(subInfoRecord.getSimSlotIndex());
-            if (LOGV) {
-                Log.v(TAG, "updateSignalStrength{" +
-                        "signalStrength='" + signalStrength + '\'' +
-                        "signalStrengthLevel='" + ((signalStrength != null) ?
-                        signalStrength.getLevel() : "null") + '\'' +
-                        ", subInfoRecord.getSimSlotIndex() =" + subInfoRecord.getSimSlotIndex() +
-                        '}');
-            }
-            if (!hasService(subInfoRecord)) {
-                signalView.setImageResource(R.drawable.ic_signal_no_signal);
-            } else {
-                if (signalStrength != null) {
-                    int resId;
-                    switch (signalStrength.getLevel()) {
-                        case 4:
-                            resId = R.drawable.ic_signal_4;
-                            break;
-                        case 3:
-                            resId = R.drawable.ic_signal_3;
-                            break;
-                        case 2:
-                            resId = R.drawable.ic_signal_2;
-                            break;
-                        case 1:
-                            resId = R.drawable.ic_signal_1;
-                            break;
-                        default:
-                            resId = R.drawable.ic_signal_0;
-                            break;
-                    }
-                    signalView.setImageResource(resId);
-                }
+    private void onViewUpdated() {
+        mViewUpdateCount++;
+        final long second = SystemClock.uptimeMillis() / 1000;
+        if (second != mViewUpdateSecond) {
+            if (LOGV && mViewUpdatesThisSecond > 0) {
+                Log.v(TAG, mViewUpdatesThisSecond + " view updates/s from " + mRenderCount
+                        + " row updates so far");
             }
-            updateCarrierText(subInfoRecord);
+            mViewUpdateSecond = second;
+            mViewUpdatesThisSecond = 0;
         }
+        mViewUpdatesThisSecond++;
+        mMaxViewUpdatesPerSecond = Math.max(mMaxViewUpdatesPerSecond, mViewUpdatesThisSecond);
     }
 
     private boolean hasService(SubscriptionInfo subInfoRecord) {
@@ -466,6 +506,24 @@ public class ChooseDataSimActivity extends BaseSetupWizardActivity {
         return retVal;
     }
 
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        writer.println(prefix + "  SIM rows updates=" + mRenderCount
+                + " viewUpdates=" + mViewUpdateCount
+                + " maxViewUpdatesPerSecond=" + mMaxViewUpdatesPerSecond);
+        if (mSimRows == null) {
+            return;
+        }
+        for (int i = 0; i < mSimRows.size(); i++) {
+            final SimRow row = mSimRows.valueAt(i);
+            writer.println(prefix + "    slot=" + mSimRows.keyAt(i)
+                    + " signalLevel=" + row.mSignalLevel + " inService=" + row.mInService
+                    + " carrier=\"" + row.mCarrierName + "\" checked=" + row.mChecked
+                    + " enabled=" + row.mEnabled);
+        }
+    }
+
     @Override
     protected int getLayoutResId() {
         return R.layout.choose_data_sim_page;
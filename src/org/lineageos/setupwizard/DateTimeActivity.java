@@ -27,7 +27,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
-import android.os.Handler;
 import android.text.format.DateFormat;
 import android.view.View;
 import android.widget.AdapterView;
@@ -65,8 +64,6 @@ public class DateTimeActivity extends BaseSetupWizardActivity implements
     private TextView mDateTextView;
     private TextView mTimeTextView;
 
-    private final Handler mHandler = new Handler();
-
     private final BroadcastReceiver mIntentReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -89,7 +86,7 @@ public class DateTimeActivity extends BaseSetupWizardActivity implements
         mDateTextView = (TextView) findViewById(R.id.date_text);
         mTimeTextView = (TextView) findViewById(R.id.time_text);
         // Pre-select current/default timezone
-        mHandler.post(() -> {
+        mTasks.runOnMain("selectTimeZone", () -> {
             int tzIndex = getTimeZoneIndex(adapter, mCurrentTimeZone);
             spinner.setAdapter(adapter);
             if (tzIndex != -1) {
@@ -117,7 +114,7 @@ public class DateTimeActivity extends BaseSetupWizardActivity implements
             });
         });
         // Pre-select current/default date if epoch
-        mHandler.post(() -> {
+        mTasks.runOnMain("selectDate", () -> {
             final Calendar calendar = Calendar.getInstance();
             final boolean isEpoch = calendar.get(Calendar.YEAR) == 1970;
             if (isEpoch) {
@@ -33,7 +33,6 @@ import android.content.pm.ActivityInfo;
 import android.graphics.Bitmap;
 import android.graphics.Point;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.UserHandle;
 import android.preference.PreferenceManager;
 import android.view.View;
@@ -53,8 +52,6 @@ public class FinishActivity extends BaseSetupWizardActivity {
 
     private SetupWizardApp mSetupWizardApp;
 
-    private final Handler mHandler = new Handler();
-
     private volatile boolean mIsFinishing = false;
 
     @Override
@@ -142,12 +139,7 @@ public class FinishActivity extends BaseSetupWizardActivity {
 
             @Override
             public void onAnimationEnd(Animator animation) {
-                mHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        completeSetup();
-                    }
-                });
+                mTasks.runOnMain("completeSetup", FinishActivity.this::completeSetup);
             }
 
             @Override
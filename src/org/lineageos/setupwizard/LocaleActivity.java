@@ -24,9 +24,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.res.Configuration;
 import android.content.res.Resources;
-import android.os.AsyncTask;
 import android.os.Bundle;
-import android.os.Handler;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
@@ -39,6 +37,7 @@ import com.android.internal.telephony.util.LocaleUtils;
 
 import com.google.android.setupcompat.util.SystemBarHelper;
 
+import org.lineageos.setupwizard.util.TaskScheduler;
 import org.lineageos.setupwizard.widget.LocalePicker;
 
 import java.util.List;
@@ -52,8 +51,7 @@ public class LocaleActivity extends BaseSetupWizardActivity {
     private Locale mCurrentLocale;
     private int[] mAdapterIndices;
     private LocalePicker mLanguagePicker;
-    private FetchUpdateSimLocaleTask mFetchUpdateSimLocaleTask;
-    private final Handler mHandler = new Handler();
+    private TaskScheduler.Task mFetchSimLocaleTask;
     private boolean mPendingLocaleUpdate;
     private boolean mPaused = true;
 
@@ -168,9 +166,8 @@ public class LocaleActivity extends BaseSetupWizardActivity {
         localConfiguration2.locale = paramLocale;
         localResources.updateConfiguration(localConfiguration2, null);
         localResources.updateConfiguration(localConfiguration1, null);
-        mHandler.removeCallbacks(mUpdateLocale);
         mCurrentLocale = paramLocale;
-        mHandler.postDelayed(mUpdateLocale, 1000);
+        mTasks.debounce("updateLocale", mUpdateLocale, 1000);
     }
 
     private void fetchAndUpdateSimLocale() {
@@ -181,63 +178,59 @@ public class LocaleActivity extends BaseSetupWizardActivity {
             mPendingLocaleUpdate = true;
             return;
         }
-        if (mFetchUpdateSimLocaleTask != null) {
-            mFetchUpdateSimLocaleTask.cancel(true);
+        if (mFetchSimLocaleTask != null) {
+            mFetchSimLocaleTask.cancel();
         }
-        mFetchUpdateSimLocaleTask = new FetchUpdateSimLocaleTask();
-        mFetchUpdateSimLocaleTask.execute();
+        mFetchSimLocaleTask = mTasks.runInBackground("fetchSimLocale", this::fetchSimLocale,
+                this::onSimLocaleFetched);
     }
 
-    private class FetchUpdateSimLocaleTask extends AsyncTask<Void, Void, Locale> {
-        @Override
-        protected Locale doInBackground(Void... params) {
-            Locale locale = null;
-            Activity activity = LocaleActivity.this;
-            if (!activity.isFinishing() || !activity.isDestroyed()) {
-                // If the sim is currently pin locked, return
-                TelephonyManager telephonyManager = (TelephonyManager)
-                        activity.getSystemService(Context.TELEPHONY_SERVICE);
-                int state = telephonyManager.getSimState();
-                if (state == TelephonyManager.SIM_STATE_PIN_REQUIRED ||
-                        state == TelephonyManager.SIM_STATE_PUK_REQUIRED) {
-                    return null;
-                }
+    private Locale fetchSimLocale() {
+        Locale locale = null;
+        Activity activity = LocaleActivity.this;
+        if (!activity.isFinishing() || !activity.isDestroyed()) {
+            // If the sim is currently pin locked, return
+            TelephonyManager telephonyManager = (TelephonyManager)
+                    activity.getSystemService(Context.TELEPHONY_SERVICE);
+            int state = telephonyManager.getSimState();
+            if (state == TelephonyManager.SIM_STATE_PIN_REQUIRED ||
+                    state == TelephonyManager.SIM_STATE_PUK_REQUIRED) {
+                return null;
+            }
 
-                final SubscriptionManager subscriptionManager =
-                        SubscriptionManager.from(activity);
-                List<SubscriptionInfo> activeSubs =
-                        subscriptionManager.getActiveSubscriptionInfoList();
-                if (activeSubs == null || activeSubs.isEmpty()) {
-                    return null;
-                }
+            final SubscriptionManager subscriptionManager =
+                    SubscriptionManager.from(activity);
+            List<SubscriptionInfo> activeSubs =
+                    subscriptionManager.getActiveSubscriptionInfoList();
+            if (activeSubs == null || activeSubs.isEmpty()) {
+                return null;
+            }
 
-                // Fetch locale for active sim's MCC
-                int mcc = activeSubs.get(0).getMcc();
-                locale = LocaleUtils.getLocaleFromMcc(activity, mcc, null);
+            // Fetch locale for active sim's MCC
+            int mcc = activeSubs.get(0).getMcc();
+            locale = LocaleUtils.getLocaleFromMcc(activity, mcc, null);
 
-                // If that fails, fall back to preferred languages reported
-                // by the sim
-                if (locale == null) {
-                    String localeString = telephonyManager.getLocaleFromDefaultSim();
-                    if (localeString != null) {
-                        locale = Locale.forLanguageTag(localeString);
+            // If that fails, fall back to preferred languages reported
+            // by the sim
+            if (locale == null) {
+                String localeString = telephonyManager.getLocaleFromDefaultSim();
+                if (localeString != null) {
+                    locale = Locale.forLanguageTag(localeString);
 
-                    }
                 }
             }
-            return locale;
         }
+        return locale;
+    }
 
-        @Override
-        protected void onPostExecute(Locale simLocale) {
-            if (simLocale != null && !simLocale.equals(mCurrentLocale)) {
-                if (!((SetupWizardApp) getApplication()).ignoreSimLocale() && !isDestroyed()) {
-                    String label = getString(R.string.sim_locale_changed,
-                            simLocale.getDisplayName());
-                    Toast.makeText(LocaleActivity.this, label, Toast.LENGTH_SHORT).show();
-                    onLocaleChanged(simLocale);
-                    ((SetupWizardApp) getApplication()).setIgnoreSimLocale(true);
-                }
+    private void onSimLocaleFetched(Locale simLocale) {
+        if (simLocale != null && !simLocale.equals(mCurrentLocale)) {
+            if (!((SetupWizardApp) getApplication()).ignoreSimLocale() && !isDestroyed()) {
+                String label = getString(R.string.sim_locale_changed,
+                        simLocale.getDisplayName());
+                Toast.makeText(LocaleActivity.this, label, Toast.LENGTH_SHORT).show();
+                onLocaleChanged(simLocale);
+                ((SetupWizardApp) getApplication()).setIgnoreSimLocale(true);
             }
         }
     }
@@ -18,9 +18,9 @@
 package org.lineageos.setupwizard;
 
 import static org.lineageos.setupwizard.SetupWizardApp.LOGV;
+import static org.lineageos.setupwizard.SetupWizardApp.SIGNAL_LEVEL_NO_SERVICE;
 
 import android.os.Bundle;
-import android.os.Handler;
 import android.telephony.ServiceState;
 import android.telephony.SignalStrength;
 import android.telephony.SubscriptionManager;
@@ -34,35 +34,42 @@ import android.widget.ProgressBar;
 import android.widget.Switch;
 import android.widget.TextView;
 
+import org.lineageos.setupwizard.util.MobileDataWriter;
 import org.lineageos.setupwizard.util.NetworkMonitor;
 import org.lineageos.setupwizard.util.PhoneMonitor;
-import org.lineageos.setupwizard.util.SetupWizardUtils;
+import org.lineageos.setupwizard.util.ReadinessGate;
+import org.lineageos.setupwizard.util.ReadinessGates;
 
 public class MobileDataActivity extends BaseSetupWizardActivity {
 
     public static final String TAG = MobileDataActivity.class.getSimpleName();
 
-    private static final int DC_READY_TIMEOUT = 20 * 1000;
-
     private ProgressBar mProgressBar;
     private View mEnableDataRow;
     private Switch mEnableMobileData;
     private ImageView mSignalView;
     private TextView mNameView;
 
-    private TelephonyManager mPhone;
     private SignalStrength mSignalStrength;
     private ServiceState mServiceState;
     private PhoneMonitor mPhoneMonitor;
     private NetworkMonitor mNetworkMonitor;
+    private ReadinessGates mReadinessGates;
+    private MobileDataWriter mMobileDataWriter;
 
     private boolean mIsAttached = false;
 
-    private final Handler mHandler = new Handler();
+    private ReadinessGate mRadioReady;
+    private ReadinessGate mDataReady;
 
-    private final Runnable mRadioReadyRunnable = this::hideWaitForRadio;
+    private final Runnable mRadioReadyCallback = this::hideWaitForRadio;
 
-    private final Runnable mDataConnectionReadyRunnable = this::onDataStateReady;
+    private final MobileDataWriter.Listener mMobileDataListener = enabled -> {
+        mEnableMobileData.setChecked(enabled);
+        if (!enabled) {
+            onDataStateReady();
+        }
+    };
 
     private final PhoneMonitor.SubscriptionStateListener mSubscriptionStateListener =
             new PhoneMonitor.SubscriptionStateListener() {
@@ -74,9 +81,6 @@ public class MobileDataActivity extends BaseSetupWizardActivity {
                                 ", serviceState=" + serviceState.toString() +
                                 '}');
                     }
-                    if (SetupWizardUtils.isRadioReady(MobileDataActivity.this, serviceState)) {
-                        hideWaitForRadio();
-                    }
                     mServiceState = serviceState;
                     updateSignalStrength();
                 }
@@ -89,9 +93,6 @@ public class MobileDataActivity extends BaseSetupWizardActivity {
                                 ", state=" + state +
                                 '}');
                     }
-                    if (state == TelephonyManager.DATA_CONNECTED) {
-                        onDataStateReady();
-                    }
                 }
 
                 @Override
@@ -130,7 +131,7 @@ public class MobileDataActivity extends BaseSetupWizardActivity {
         @Override
         public void onClick(View view) {
             boolean checked = !mEnableMobileData.isChecked();
-            SetupWizardUtils.setMobileDataEnabled(MobileDataActivity.this, checked);
+            mMobileDataWriter.setEnabled(checked);
             mEnableMobileData.setChecked(checked);
             if (checked && !mNetworkMonitor.isWifiConnected()) {
                 waitForData();
@@ -145,6 +146,8 @@ public class MobileDataActivity extends BaseSetupWizardActivity {
         super.onCreate(savedInstanceState);
         mPhoneMonitor = PhoneMonitor.getInstance();
         mNetworkMonitor = NetworkMonitor.getInstance();
+        mReadinessGates = ReadinessGates.getInstance();
+        mMobileDataWriter = MobileDataWriter.getInstance();
         setNextText(R.string.next);
 
         mProgressBar = (ProgressBar) findViewById(R.id.progress);
@@ -157,19 +160,38 @@ public class MobileDataActivity extends BaseSetupWizardActivity {
         updateSignalStrength();
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        mPhoneMonitor.acquire();
+        mNetworkMonitor.acquire();
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        mPhoneMonitor.release();
+        mNetworkMonitor.release();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mDataReady != null) {
+            mDataReady.cancel();
+        }
+    }
+
     @Override
     public void onResume() {
         super.onResume();
         mIsAttached = true;
-        mPhone = getSystemService(TelephonyManager.class);
         mPhoneMonitor.addListener(mSubscriptionStateListener);
+        mMobileDataWriter.addListener(mMobileDataListener);
         updateDataConnectionStatus();
         updateSignalStrength();
-        if (SetupWizardUtils.isRadioReady(this, null)) {
-            hideWaitForRadio();
-        } else {
-            mHandler.postDelayed(mRadioReadyRunnable, SetupWizardApp.RADIO_READY_TIMEOUT);
-        }
+        mRadioReady = mReadinessGates.radioPowered();
+        mRadioReady.whenOpen(mRadioReadyCallback);
     }
 
     @Override
@@ -177,11 +199,12 @@ public class MobileDataActivity extends BaseSetupWizardActivity {
         super.onPause();
         mIsAttached = false;
         mPhoneMonitor.removeListener(mSubscriptionStateListener);
+        mMobileDataWriter.removeListener(mMobileDataListener);
+        mRadioReady.removeCallback(mRadioReadyCallback);
     }
 
     private void hideWaitForRadio() {
         if (mProgressBar.isShown()) {
-            mHandler.removeCallbacks(mRadioReadyRunnable);
             // Something else, like data enablement, may have grabbed
             // the "hold" status. Kill it only if "Next" is active
             if (isNextAllowed()) {
@@ -191,18 +214,26 @@ public class MobileDataActivity extends BaseSetupWizardActivity {
     }
 
     private void waitForData() {
-        if (!mProgressBar.isShown()) {
+        if (mDataReady != null) {
+            // Already waiting.
+            return;
+        }
+        mDataReady = mReadinessGates.awaitDataConnection();
+        if (!mDataReady.isOpen()) {
             mProgressBar.setVisibility(View.VISIBLE);
             mProgressBar.startAnimation(
                     AnimationUtils.loadAnimation(this, R.anim.translucent_enter));
             mEnableDataRow.setEnabled(false);
             setNextAllowed(false);
-            mHandler.postDelayed(mDataConnectionReadyRunnable, DC_READY_TIMEOUT);
         }
+        mDataReady.whenOpen(this::onDataStateReady);
     }
 
     private void onDataStateReady() {
-        mHandler.removeCallbacks(mDataConnectionReadyRunnable);
+        if (mDataReady != null) {
+            mDataReady.cancel();
+            mDataReady = null;
+        }
         if ((mProgressBar.isShown()) ||
                 !isNextAllowed()) {
             mProgressBar.startAnimation(
@@ -215,9 +246,11 @@ public class MobileDataActivity extends BaseSetupWizardActivity {
 
     private void updateCarrierText() {
         if (mIsAttached) {
-            String name = mPhone.getSimOperatorName(getDefaultSubscriptionId());
+            // Served from the PhoneMonitor snapshot while it is listening, no binder call.
+            final int subId = getDefaultSubscriptionId();
+            String name = mPhoneMonitor.getSimOperatorName(subId);
             if (TextUtils.isEmpty(name)) {
-                name = mPhone.getNetworkOperatorName(getDefaultSubscriptionId());
+                name = mPhoneMonitor.getNetworkOperatorName(subId);
             }
             if (TextUtils.isEmpty(name)) {
                 if (mServiceState != null && mServiceState.isEmergencyOnly()) {
@@ -240,36 +273,16 @@ public class MobileDataActivity extends BaseSetupWizardActivity {
                         '}');
             }
             if (!hasService()) {
-                mSignalView.setImageResource(R.drawable.ic_signal_no_signal);
-            } else {
-                if (mSignalStrength != null) {
-                    int resId;
-                    switch (mSignalStrength.getLevel()) {
-                        case 4:
-                            resId = R.drawable.ic_signal_4;
-                            break;
-                        case 3:
-                            resId = R.drawable.ic_signal_3;
-                            break;
-                        case 2:
-                            resId = R.drawable.ic_signal_2;
-                            break;
-                        case 1:
-                            resId = R.drawable.ic_signal_1;
-                            break;
-                        default:
-                            resId = R.drawable.ic_signal_0;
-                            break;
-                    }
-                    mSignalView.setImageResource(resId);
-                }
+                mSignalView.setImageLevel(SIGNAL_LEVEL_NO_SERVICE);
+            } else if (mSignalStrength != null) {
+                mSignalView.setImageLevel(mSignalStrength.getLevel());
             }
             updateCarrierText();
         }
     }
 
     private void updateDataConnectionStatus() {
-        mEnableMobileData.setChecked(SetupWizardUtils.isMobileDataEnabled(this));
+        mEnableMobileData.setChecked(mMobileDataWriter.isEnabled());
     }
 
     private boolean hasService() {
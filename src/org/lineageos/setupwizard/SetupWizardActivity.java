@@ -30,7 +30,9 @@ import android.util.Log;
 
 import com.google.android.setupcompat.util.WizardManagerHelper;
 
+import org.lineageos.setupwizard.util.ComponentStateEngine;
 import org.lineageos.setupwizard.util.SetupWizardUtils;
+import org.lineageos.setupwizard.util.StartupProfiler;
 import org.lineageos.setupwizard.wizardmanager.WizardManager;
 
 public class SetupWizardActivity extends BaseSetupWizardActivity {
@@ -38,6 +40,7 @@ public class SetupWizardActivity extends BaseSetupWizardActivity {
 
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
+        StartupProfiler.begin(StartupProfiler.PHASE_SETUP_ACTIVITY);
         super.onCreate(savedInstanceState);
         if (LOGV) {
             Log.v(TAG, "onCreate savedInstanceState=" + savedInstanceState);
@@ -48,7 +51,7 @@ public class SetupWizardActivity extends BaseSetupWizardActivity {
         } else {
             onSetupStart();
             SetupWizardUtils.enableComponent(this, WizardManager.class);
-            Intent intent = new Intent(ACTION_LOAD);
+            final Intent intent = new Intent(ACTION_LOAD);
             if (isPrimaryUser()) {
                 intent.putExtra(EXTRA_SCRIPT_URI, getString(R.string.lineage_wizard_script_uri));
             } else {
@@ -56,8 +59,12 @@ public class SetupWizardActivity extends BaseSetupWizardActivity {
                         getString(R.string.lineage_wizard_script_user_uri));
             }
             intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | FLAG_GRANT_READ_URI_PERMISSION);
-            startActivity(intent);
-            finish();
+            // WizardManager can only be started once it is enabled.
+            ComponentStateEngine.getInstance(this).flush(mTasks, "startWizardManager", () -> {
+                startActivity(intent);
+                finish();
+            });
         }
+        StartupProfiler.end(StartupProfiler.PHASE_SETUP_ACTIVITY);
     }
 }
@@ -20,12 +20,16 @@ package org.lineageos.setupwizard;
 import android.app.Application;
 import android.app.StatusBarManager;
 import android.os.Bundle;
-import android.os.Handler;
 import android.util.Log;
 
+import org.lineageos.setupwizard.util.DeviceCapabilities;
+import org.lineageos.setupwizard.util.MobileDataWriter;
 import org.lineageos.setupwizard.util.NetworkMonitor;
 import org.lineageos.setupwizard.util.PhoneMonitor;
+import org.lineageos.setupwizard.util.ReadinessHistory;
 import org.lineageos.setupwizard.util.SetupWizardUtils;
+import org.lineageos.setupwizard.util.StartupInitializer;
+import org.lineageos.setupwizard.util.StartupProfiler;
 
 public class SetupWizardApp extends Application {
 
@@ -68,43 +72,63 @@ public class SetupWizardApp extends Application {
 
     public static final int RADIO_READY_TIMEOUT = 10 * 1000;
 
+    // Level of the ic_signal level-list showing no service.
+    public static final int SIGNAL_LEVEL_NO_SERVICE = 5;
+
+    public static final String TASK_DEVICE_CAPABILITIES = "DeviceCapabilities";
+    public static final String TASK_NETWORK_MONITOR = "NetworkMonitor";
+    public static final String TASK_PHONE_MONITOR = "PhoneMonitor";
+    public static final String TASK_READINESS_HISTORY = "ReadinessHistory";
+    public static final String TASK_MISSING_FEATURES = "disableComponentsForMissingFeatures";
+    public static final String TASK_MOBILE_DATA = "MobileDataWriter";
+    public static final String TASK_STATUS_BAR = "disableStatusBar";
+
     private static StatusBarManager sStatusBarManager;
+    private static StartupInitializer sStartupInitializer;
 
-    private boolean mIsRadioReady = false;
     private boolean mIgnoreSimLocale = false;
 
     private final Bundle mSettingsBundle = new Bundle();
-    private final Handler mHandler = new Handler();
-
-    private final Runnable mRadioTimeoutRunnable = () -> mIsRadioReady = true;
 
     @Override
     public void onCreate() {
+        StartupProfiler.begin(StartupProfiler.PHASE_APP_CREATE);
         super.onCreate();
         if (LOGV) {
             Log.v(TAG, "onCreate()");
         }
-        NetworkMonitor.initInstance(this);
-        PhoneMonitor.initInstance(this);
-        SetupWizardUtils.disableComponentsForMissingFeatures(this);
-        SetupWizardUtils.setMobileDataEnabled(this, false);
-        sStatusBarManager = SetupWizardUtils.disableStatusBar(this);
-        mHandler.postDelayed(mRadioTimeoutRunnable, SetupWizardApp.RADIO_READY_TIMEOUT);
+        sStartupInitializer = new StartupInitializer()
+                .addTask(TASK_DEVICE_CAPABILITIES, () -> DeviceCapabilities.initInstance(this))
+                .addTask(TASK_NETWORK_MONITOR, () -> NetworkMonitor.initInstance(this))
+                .addTask(TASK_PHONE_MONITOR, () -> PhoneMonitor.initInstance(this))
+                .addTask(TASK_READINESS_HISTORY, () -> ReadinessHistory.initInstance(this))
+                .addTask(TASK_MISSING_FEATURES,
+                        () -> SetupWizardUtils.disableComponentsForMissingFeatures(this),
+                        TASK_DEVICE_CAPABILITIES, TASK_NETWORK_MONITOR, TASK_PHONE_MONITOR)
+                .addTask(TASK_MOBILE_DATA, () -> MobileDataWriter.initInstance(this))
+                .addTask(TASK_STATUS_BAR,
+                        () -> sStatusBarManager = SetupWizardUtils.disableStatusBar(this));
+        sStartupInitializer.start();
+        StartupProfiler.end(StartupProfiler.PHASE_APP_CREATE);
     }
 
-    public static StatusBarManager getStatusBarManager() {
-        return sStatusBarManager;
+    /**
+     * Blocks until the given startup task has finished. Does nothing in processes that did
+     * not run the startup tasks.
+     */
+    public static void awaitStartupTask(String name) {
+        if (sStartupInitializer != null) {
+            sStartupInitializer.await(name);
+        }
     }
 
-    public boolean isRadioReady() {
-        return mIsRadioReady;
+    public static StartupInitializer getStartupInitializer() {
+        return sStartupInitializer;
     }
 
-    public void setRadioReady(boolean radioReady) {
-        if (!mIsRadioReady && radioReady) {
-            mHandler.removeCallbacks(mRadioTimeoutRunnable);
-        }
-        mIsRadioReady = radioReady;
+    public static StatusBarManager getStatusBarManager() {
+        awaitStartupTask(TASK_STATUS_BAR);
+        return sStatusBarManager;
     }
 
     public boolean ignoreSimLocale() {
@@ -31,7 +31,9 @@ import android.os.Bundle;
 import android.provider.Settings;
 import android.util.Log;
 
+import org.lineageos.setupwizard.util.ComponentStateEngine;
 import org.lineageos.setupwizard.util.SetupWizardUtils;
+import org.lineageos.setupwizard.util.TaskScheduler;
 
 import java.util.List;
 
@@ -39,6 +41,8 @@ public class SetupWizardTestActivity extends Activity {
 
     private static final String TAG = SetupWizardTestActivity.class.getSimpleName();
 
+    private final TaskScheduler.Scope mTasks = TaskScheduler.getInstance().newScope(TAG);
+
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         if (LOGV) {
@@ -51,12 +55,20 @@ public class SetupWizardTestActivity extends Activity {
         SetupWizardUtils.resetComponentSets(this, GET_ACTIVITIES |
                 GET_RECEIVERS | GET_SERVICES | MATCH_DISABLED_COMPONENTS);
         forgetAllWifi();
-        Intent setupIntent = new Intent("android.intent.action.MAIN")
+        final Intent setupIntent = new Intent("android.intent.action.MAIN")
                 .addCategory("android.intent.category.HOME")
                 .addFlags(Intent.FLAG_ACTIVITY_CLEAR_TASK | Intent.FLAG_GRANT_READ_URI_PERMISSION);
         SetupWizardUtils.disableComponentsForMissingFeatures(this);
-        startActivity(setupIntent);
-        finish();
+        ComponentStateEngine.getInstance(this).flush(mTasks, "restartSetup", () -> {
+            startActivity(setupIntent);
+            finish();
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        mTasks.cancel();
+        super.onDestroy();
     }
 
     private void forgetAllWifi() {
@@ -58,6 +58,18 @@ public class SimMissingActivity extends BaseSetupWizardActivity {
         }
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        mPhoneMonitor.acquire();
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        mPhoneMonitor.release();
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
@@ -25,15 +25,31 @@ import static org.lineageos.setupwizard.SetupWizardApp.EXTRA_PREFS_SHOW_SKIP;
 import static org.lineageos.setupwizard.SetupWizardApp.REQUEST_CODE_SETUP_WIFI;
 
 import android.content.Intent;
+import android.os.Bundle;
 
 import com.google.android.setupcompat.util.WizardManagerHelper;
 
+import org.lineageos.setupwizard.util.NetworkMonitor;
 import org.lineageos.setupwizard.util.SetupWizardUtils;
 
 public class WifiSetupActivity extends WrapperSubBaseActivity {
 
     public static final String TAG = WifiSetupActivity.class.getSimpleName();
 
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        // Keep listening while the Wi-Fi picker covers us, so that a network the user
+        // connects to is probed for a captive portal right away.
+        NetworkMonitor.getInstance().acquire();
+        super.onCreate(savedInstanceState);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        NetworkMonitor.getInstance().release();
+    }
+
     @Override
     protected void onStartSubactivity() {
         Intent intent = new Intent(ACTION_SETUP_WIFI);
@@ -0,0 +1,394 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.setupwizard.util;
+
+import static org.lineageos.setupwizard.SetupWizardApp.LOGV;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.os.SystemClock;
+import android.provider.Settings;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Decides whether a network is behind a captive portal by racing several probes.
+ *
+ * An HTTP probe, an HTTPS probe and a fallback HTTP probe run in parallel. The first probe that
+ * gives a conclusive answer decides and the others are cancelled. An HTTP probe is conclusive
+ * when it gets any response: 204 means there is no portal, anything else means something
+ * answered in place of the real server. An HTTPS probe can't be intercepted, so only its 204
+ * is conclusive. If no probe is conclusive the network is assumed not to be a portal.
+ *
+ * Timeouts follow the round trip times seen by earlier probes, so a blackholed server costs a
+ * few round trips rather than the worst case.
+ *
+ * Probes started through {@link #probe(Context, Network)} are kept per network, so a network
+ * is probed once, as soon as it connects, and later callers get the verdict or attach to the
+ * probe in flight. A probe that ends without a conclusive answer is not kept, so the next
+ * caller probes again, and the kept verdicts are dropped once {@link NetworkMonitor} stops
+ * listening, as nothing tells of networks going away then.
+ */
+public final class CaptivePortalProbe {
+
+    private static final String TAG = CaptivePortalProbe.class.getSimpleName();
+
+    private static final String KEY_HTTPS_URL = "captive_portal_https_url";
+    private static final String KEY_FALLBACK_URL = "captive_portal_fallback_url";
+    private static final String DEFAULT_HTTPS_URL = "https://www.google.com/generate_204";
+    private static final String DEFAULT_FALLBACK_URL = "http://www.google.com/gen_204";
+
+    private static final int MIN_TIMEOUT_MS = 1000;
+    private static final int MAX_TIMEOUT_MS = 10000;
+
+    private static final int VERDICT_UNKNOWN = 0;
+    private static final int VERDICT_NO_PORTAL = 1;
+    private static final int VERDICT_PORTAL = 2;
+
+    private static final RttEstimator sRtt = new RttEstimator();
+    private static int sProbeCount;
+    private static int sCancelCount;
+
+    // Guarded by CaptivePortalProbe.class.
+    private static final ArrayMap<Network, CaptivePortalProbe> sNetworkProbes = new ArrayMap<>();
+    private static int sNetworkProbeHitCount;
+    private static int sInconclusiveCount;
+
+    public interface Listener {
+        void onCaptivePortalResult(boolean isPortal);
+    }
+
+    /**
+     * Smoothed round trip time as in RFC 6298, giving a timeout of srtt + 4 * rttvar.
+     */
+    private static final class RttEstimator {
+        private long mSrttMillis = -1;
+        private long mRttVarMillis;
+
+        synchronized void add(long millis) {
+            if (mSrttMillis < 0) {
+                mSrttMillis = millis;
+                mRttVarMillis = millis / 2;
+            } else {
+                mRttVarMillis = (3 * mRttVarMillis + Math.abs(mSrttMillis - millis)) / 4;
+                mSrttMillis = (7 * mSrttMillis + millis) / 8;
+            }
+        }
+
+        synchronized int getTimeoutMillis() {
+            if (mSrttMillis < 0) {
+                return MAX_TIMEOUT_MS;
+            }
+            return (int) Math.max(MIN_TIMEOUT_MS,
+                    Math.min(MAX_TIMEOUT_MS, mSrttMillis + 4 * mRttVarMillis));
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "srttMs=" + mSrttMillis + " rttvarMs=" + mRttVarMillis
+                    + " timeoutMs=" + getTimeoutMillis();
+        }
+    }
+
+    private final class Probe implements Runnable {
+        final String mName;
+        final URL mUrl;
+        final boolean mHttps;
+        TaskScheduler.Task mTask;
+        volatile HttpURLConnection mConnection;
+
+        Probe(String name, URL url) {
+            mName = name;
+            mUrl = url;
+            mHttps = "https".equals(url.getProtocol());
+        }
+
+        @Override
+        public void run() {
+            int verdict = VERDICT_UNKNOWN;
+            try {
+                final int timeout = sRtt.getTimeoutMillis();
+                final long start = SystemClock.elapsedRealtime();
+                mConnection = (HttpURLConnection) (mNetwork != null
+                        ? mNetwork.openConnection(mUrl) : mUrl.openConnection());
+                mConnection.setInstanceFollowRedirects(false);
+                mConnection.setConnectTimeout(timeout);
+                mConnection.setReadTimeout(timeout);
+                mConnection.setUseCaches(false);
+                final int responseCode = mConnection.getResponseCode();
+                sRtt.add(SystemClock.elapsedRealtime() - start);
+                if (LOGV) {
+                    Log.v(TAG, mName + " " + mUrl + " returned " + responseCode);
+                }
+                if (responseCode == 204) {
+                    verdict = VERDICT_NO_PORTAL;
+                } else if (!mHttps) {
+                    // Redirects, 408 and 504 included: something other than the real server
+                    // answered, so we'll go through the captive portal login.
+                    verdict = VERDICT_PORTAL;
+                }
+            } catch (IOException e) {
+                if (LOGV) {
+                    Log.v(TAG, mName + " " + mUrl + " failed: " + e);
+                }
+            } finally {
+                if (mConnection != null) {
+                    mConnection.disconnect();
+                }
+            }
+            onProbeFinished(this, verdict);
+        }
+
+        void cancel() {
+            if (mTask != null) {
+                mTask.cancel();
+            }
+            final HttpURLConnection connection = mConnection;
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private static final class Registration {
+        final Listener mListener;
+        final Executor mExecutor;
+
+        Registration(Listener listener, Executor executor) {
+            mListener = listener;
+            mExecutor = executor;
+        }
+    }
+
+    private final Network mNetwork;
+    private final List<Probe> mProbes = new ArrayList<>();
+    private final List<Registration> mRegistrations = new ArrayList<>();
+    private int mPending;
+    private boolean mStarted;
+    private boolean mDone;
+    private boolean mPortal;
+    private long mStartMillis;
+
+    /**
+     * Returns the probe of the given network, starting it if the network wasn't probed yet.
+     * A null network means the default one, which is probed every time.
+     */
+    public static CaptivePortalProbe probe(Context context, Network network) {
+        CaptivePortalProbe probe;
+        synchronized (CaptivePortalProbe.class) {
+            probe = network != null ? sNetworkProbes.get(network) : null;
+            if (probe != null) {
+                sNetworkProbeHitCount++;
+                return probe;
+            }
+            probe = create(context, network);
+            if (network != null) {
+                sNetworkProbes.put(network, probe);
+            }
+        }
+        if (LOGV) {
+            Log.v(TAG, "probing " + network);
+        }
+        probe.start();
+        return probe;
+    }
+
+    /**
+     * Drops the verdict kept for the given network, which is probed again next time. A probe
+     * still running goes on for the listeners attached to it.
+     */
+    public static void forget(Network network) {
+        synchronized (CaptivePortalProbe.class) {
+            sNetworkProbes.remove(network);
+        }
+    }
+
+    /**
+     * Drops the verdicts kept for every network.
+     */
+    public static void forgetAll() {
+        synchronized (CaptivePortalProbe.class) {
+            sNetworkProbes.clear();
+        }
+    }
+
+    /**
+     * Creates a probe of the given network, or of the default network if it is null, using the
+     * captive portal URLs configured on the device.
+     */
+    public static CaptivePortalProbe create(Context context, Network network) {
+        final ConnectivityManager cm = context.getSystemService(ConnectivityManager.class);
+        return new CaptivePortalProbe(network,
+                toUrl(cm.getCaptivePortalServerUrl()),
+                toUrl(getSetting(context, KEY_HTTPS_URL, DEFAULT_HTTPS_URL)),
+                toUrl(getSetting(context, KEY_FALLBACK_URL, DEFAULT_FALLBACK_URL)));
+    }
+
+    /**
+     * Creates a probe racing the given URLs. Any of them may be null.
+     */
+    public CaptivePortalProbe(Network network, URL httpUrl, URL httpsUrl, URL fallbackUrl) {
+        mNetwork = network;
+        if (httpUrl != null) {
+            mProbes.add(new Probe("http", httpUrl));
+        }
+        if (httpsUrl != null) {
+            mProbes.add(new Probe("https", httpsUrl));
+        }
+        if (fallbackUrl != null) {
+            mProbes.add(new Probe("fallback", fallbackUrl));
+        }
+    }
+
+    private static String getSetting(Context context, String key, String defaultValue) {
+        final String value = Settings.Global.getString(context.getContentResolver(), key);
+        return TextUtils.isEmpty(value) ? defaultValue : value;
+    }
+
+    private static URL toUrl(String url) {
+        try {
+            return new URL(url);
+        } catch (MalformedURLException e) {
+            Log.e(TAG, "Not a valid url " + url, e);
+            return null;
+        }
+    }
+
+    public synchronized void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        mStartMillis = SystemClock.elapsedRealtime();
+        mPending = mProbes.size();
+        if (mPending == 0) {
+            finishInconclusive(null);
+            return;
+        }
+        synchronized (CaptivePortalProbe.class) {
+            sProbeCount += mPending;
+        }
+        for (Probe probe : mProbes) {
+            probe.mTask = TaskScheduler.getInstance().runNetworkIo(
+                    "CaptivePortalProbe." + probe.mName, probe);
+        }
+    }
+
+    /**
+     * Calls the listener on the given executor once the result is known, right away if it
+     * already is.
+     */
+    public synchronized void addListener(Listener listener, Executor executor) {
+        if (mDone) {
+            final boolean portal = mPortal;
+            executor.execute(() -> listener.onCaptivePortalResult(portal));
+        } else {
+            mRegistrations.add(new Registration(listener, executor));
+        }
+    }
+
+    public synchronized void removeListener(Listener listener) {
+        mRegistrations.removeIf(registration -> registration.mListener == listener);
+    }
+
+    /**
+     * Stops the probes still running. Listeners that were not called yet never will be.
+     */
+    public synchronized void cancel() {
+        mRegistrations.clear();
+        if (!mDone) {
+            mDone = true;
+            cancelProbes(null);
+        }
+    }
+
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    private synchronized void onProbeFinished(Probe probe, int verdict) {
+        mPending--;
+        if (mDone) {
+            return;
+        }
+        if (verdict != VERDICT_UNKNOWN) {
+            if (LOGV) {
+                Log.v(TAG, probe.mName + " decided after "
+                        + (SystemClock.elapsedRealtime() - mStartMillis) + "ms");
+            }
+            finish(probe, verdict == VERDICT_PORTAL);
+        } else if (mPending == 0) {
+            finishInconclusive(probe);
+        }
+    }
+
+    private void finishInconclusive(Probe lastProbe) {
+        // Nothing answered, probably not a portal. The network may just not be usable yet,
+        // so the next caller probes again.
+        synchronized (CaptivePortalProbe.class) {
+            if (mNetwork != null && sNetworkProbes.get(mNetwork) == this) {
+                sNetworkProbes.remove(mNetwork);
+            }
+            sInconclusiveCount++;
+        }
+        finish(lastProbe, false);
+    }
+
+    private void finish(Probe decidingProbe, boolean portal) {
+        mDone = true;
+        mPortal = portal;
+        cancelProbes(decidingProbe);
+        for (Registration registration : mRegistrations) {
+            registration.mExecutor.execute(
+                    () -> registration.mListener.onCaptivePortalResult(portal));
+        }
+        mRegistrations.clear();
+    }
+
+    private void cancelProbes(Probe except) {
+        int cancelled = 0;
+        for (Probe probe : mProbes) {
+            if (probe != except && probe.mTask != null && probe.mTask.isPending()) {
+                probe.cancel();
+                cancelled++;
+            }
+        }
+        synchronized (CaptivePortalProbe.class) {
+            sCancelCount += cancelled;
+        }
+    }
+
+    public static void dump(String prefix, PrintWriter writer) {
+        synchronized (CaptivePortalProbe.class) {
+            writer.println(prefix + "CaptivePortalProbe probes=" + sProbeCount
+                    + " cancelled=" + sCancelCount + " networks=" + sNetworkProbes.size()
+                    + " reused=" + sNetworkProbeHitCount
+                    + " inconclusive=" + sInconclusiveCount + " " + sRtt);
+        }
+    }
+}
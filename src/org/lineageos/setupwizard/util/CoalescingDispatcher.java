@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.setupwizard.util;
+
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Hands events to listeners at most once per frame.
+ *
+ * Events are posted from any thread with a key. Until the next frame only the latest event of
+ * each key is kept, in the position it was posted at, so a burst of updates to the same value
+ * costs a single delivery. Events posted with a null key are never merged and are delivered in
+ * order with the others.
+ *
+ * Listeners added without an executor are called from the frame callback on the main thread,
+ * the others are called on their executor. Listeners may be added and removed while events
+ * are being delivered; a removed listener gets no further events.
+ */
+public final class CoalescingDispatcher<L> {
+
+    private final class Registration {
+        final L mListener;
+        final Executor mExecutor;
+        volatile boolean mRemoved;
+
+        Registration(L listener, Executor executor) {
+            mListener = listener;
+            mExecutor = executor;
+        }
+
+        void deliver(Consumer<L> event) {
+            if (!mRemoved) {
+                mDeliveryCount.incrementAndGet();
+                event.accept(mListener);
+            }
+        }
+    }
+
+    private final CopyOnWriteArrayList<Registration> mRegistrations =
+            new CopyOnWriteArrayList<>();
+    private final LinkedHashMap<Object, Consumer<L>> mPending = new LinkedHashMap<>();
+    private final Choreographer.FrameCallback mFrameCallback = this::doFrame;
+    private boolean mFrameScheduled;
+
+    private final AtomicInteger mPostCount = new AtomicInteger();
+    private final AtomicInteger mFrameCount = new AtomicInteger();
+    private final AtomicInteger mDeliveryCount = new AtomicInteger();
+
+    public void addListener(L listener, Executor executor) {
+        removeListener(listener);
+        mRegistrations.add(new Registration(listener, executor));
+    }
+
+    public void removeListener(L listener) {
+        for (Registration registration : mRegistrations) {
+            if (registration.mListener == listener) {
+                registration.mRemoved = true;
+                mRegistrations.remove(registration);
+            }
+        }
+    }
+
+    /**
+     * Queues an event for the next frame, replacing the pending event with the same key.
+     */
+    public void post(Object key, Consumer<L> event) {
+        mPostCount.incrementAndGet();
+        synchronized (mPending) {
+            if (key != null) {
+                // The newest event goes after the others, rather than in the slot of the event
+                // it replaces, so that events of different keys stay in order.
+                mPending.remove(key);
+                mPending.put(key, event);
+            } else {
+                mPending.put(new Object(), event);
+            }
+            if (mFrameScheduled) {
+                return;
+            }
+            mFrameScheduled = true;
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        } else {
+            TaskScheduler.getInstance().runOnMain("CoalescingDispatcher.postFrameCallback",
+                    () -> Choreographer.getInstance().postFrameCallback(mFrameCallback));
+        }
+    }
+
+    private void doFrame(long frameTimeNanos) {
+        final ArrayList<Consumer<L>> events;
+        synchronized (mPending) {
+            mFrameScheduled = false;
+            events = new ArrayList<>(mPending.values());
+            mPending.clear();
+        }
+        mFrameCount.incrementAndGet();
+        for (Consumer<L> event : events) {
+            for (Registration registration : mRegistrations) {
+                if (registration.mExecutor == null) {
+                    registration.deliver(event);
+                } else {
+                    registration.mExecutor.execute(() -> registration.deliver(event));
+                }
+            }
+        }
+    }
+
+    public int getPostCount() {
+        return mPostCount.get();
+    }
+
+    public int getFrameCount() {
+        return mFrameCount.get();
+    }
+
+    public int getDeliveryCount() {
+        return mDeliveryCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "posted=" + getPostCount() + " frames=" + getFrameCount()
+                + " delivered=" + getDeliveryCount() + " listeners=" + mRegistrations.size();
+    }
+}
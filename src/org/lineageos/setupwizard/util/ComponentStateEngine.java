@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.setupwizard.util;
+
+import static android.content.pm.PackageManager.DONT_KILL_APP;
+
+import static org.lineageos.setupwizard.SetupWizardApp.LOGV;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import org.lineageos.setupwizard.wizardmanager.ActionAvailabilityCache;
+
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Applies component enabled state changes to the PackageManager in the background.
+ *
+ * The engine keeps the state the PackageManager has for each component it was asked about,
+ * read once on the flush lane the first time, and drops requests that would not change it.
+ * Requests made before the next flush are coalesced per component, so a component toggled back
+ * and forth between two flushes costs nothing. Android 12 has no call that sets several
+ * components at once, so every change that remains is still one binder call.
+ *
+ * Anything that depends on the PackageManager seeing the new state, such as starting one of
+ * our components, has to wait for a flush. Screens use {@link #flush(TaskScheduler.Scope,
+ * String, Runnable)}, which flushes on the lane and continues on the main thread. Lookups that
+ * can't wait can ask for the {@link #getPendingStates() pending states} instead.
+ */
+public class ComponentStateEngine {
+
+    private static final String TAG = ComponentStateEngine.class.getSimpleName();
+
+    // Flushes run one at a time, in the order they were requested.
+    private static final String LANE = TAG;
+
+    private static ComponentStateEngine sInstance;
+
+    private final PackageManager mPackageManager;
+
+    private final Object mLock = new Object();
+    private final Object mFlushLock = new Object();
+    private final HashMap<ComponentName, Integer> mAppliedStates = new HashMap<>();
+    private final LinkedHashMap<ComponentName, Integer> mPendingStates = new LinkedHashMap<>();
+    // The changes a flush took and is applying, until it is done.
+    private Map<ComponentName, Integer> mApplyingStates = Collections.emptyMap();
+    private boolean mFlushScheduled;
+
+    private int mRequestCount;
+    private int mReadCount;
+    private int mWriteCount;
+
+    public static synchronized ComponentStateEngine getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ComponentStateEngine(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ComponentStateEngine(Context context) {
+        mPackageManager = context.getPackageManager();
+    }
+
+    public void setComponentEnabledState(ComponentName componentName, int enabledState) {
+        synchronized (mLock) {
+            mRequestCount++;
+            final Integer appliedState = mAppliedStates.get(componentName);
+            if (appliedState != null && appliedState == enabledState) {
+                // Back to what the PackageManager already has, forget any pending change.
+                mPendingStates.remove(componentName);
+                return;
+            }
+            mPendingStates.put(componentName, enabledState);
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                TaskScheduler.getInstance().runOnLane(LANE, "ComponentStateEngine.flush",
+                        this::flush);
+            }
+        }
+    }
+
+    /**
+     * Applies all pending changes on the flush lane, then runs the callback on the main thread,
+     * unless the scope was cancelled in between.
+     */
+    public void flush(TaskScheduler.Scope scope, String name, Runnable onFlushed) {
+        scope.runOnLane(LANE, name, () -> {
+            flush();
+            scope.runOnMain(name + ".flushed", onFlushed);
+        });
+    }
+
+    /**
+     * Applies all pending changes before returning, including the ones that another thread is
+     * applying at the moment. Blocks on binder calls, don't call it on the main thread.
+     */
+    public void flush() {
+        synchronized (mFlushLock) {
+            final Map<ComponentName, Integer> batch;
+            synchronized (mLock) {
+                mFlushScheduled = false;
+                if (mPendingStates.isEmpty()) {
+                    return;
+                }
+                batch = new LinkedHashMap<>(mPendingStates);
+                mPendingStates.clear();
+                mApplyingStates = batch;
+            }
+            try {
+                for (Map.Entry<ComponentName, Integer> entry : batch.entrySet()) {
+                    apply(entry.getKey(), entry.getValue());
+                }
+            } finally {
+                synchronized (mLock) {
+                    mApplyingStates = Collections.emptyMap();
+                }
+            }
+            if (LOGV) {
+                Log.v(TAG, "flush applied " + batch.size() + " changes, " + getStats());
+            }
+        }
+    }
+
+    /**
+     * @return Whether a change of the given component is waiting for a flush or being applied.
+     */
+    public boolean hasPendingChange(ComponentName componentName) {
+        synchronized (mLock) {
+            return mPendingStates.containsKey(componentName)
+                    || mApplyingStates.containsKey(componentName);
+        }
+    }
+
+    /**
+     * @return The state each component with a pending change will have once it is applied,
+     * including the changes being applied at the moment.
+     */
+    public Map<ComponentName, Integer> getPendingStates() {
+        synchronized (mLock) {
+            final HashMap<ComponentName, Integer> states = new HashMap<>(mApplyingStates);
+            states.putAll(mPendingStates);
+            return states;
+        }
+    }
+
+    /**
+     * @return Whether any change is waiting for a flush or being applied.
+     */
+    public boolean hasPendingChanges() {
+        synchronized (mLock) {
+            return !mPendingStates.isEmpty() || !mApplyingStates.isEmpty();
+        }
+    }
+
+    private void apply(ComponentName componentName, int enabledState) {
+        final Integer appliedState;
+        synchronized (mLock) {
+            appliedState = mAppliedStates.get(componentName);
+        }
+        if (appliedState == null) {
+            // First time we see the component, a read is cheaper than a write that persists
+            // the package settings and broadcasts PACKAGE_CHANGED.
+            final int currentState = readState(componentName);
+            if (currentState == enabledState) {
+                return;
+            }
+        } else if (appliedState == enabledState) {
+            return;
+        }
+        try {
+            mPackageManager.setComponentEnabledSetting(componentName, enabledState,
+                    DONT_KILL_APP);
+        } catch (IllegalArgumentException | SecurityException e) {
+            Log.e(TAG, "Unable to set enabled state of " + componentName, e);
+            return;
+        } finally {
+            synchronized (mLock) {
+                mWriteCount++;
+            }
+        }
+        synchronized (mLock) {
+            mAppliedStates.put(componentName, enabledState);
+        }
+        ActionAvailabilityCache.onComponentEnabledStateChanged(componentName);
+    }
+
+    /**
+     * @return The state the PackageManager has for the component, which is remembered, or -1 if
+     * it can't be read.
+     */
+    private int readState(ComponentName componentName) {
+        final int state;
+        try {
+            state = mPackageManager.getComponentEnabledSetting(componentName);
+        } catch (IllegalArgumentException | SecurityException e) {
+            Log.e(TAG, "Unable to get enabled state of " + componentName, e);
+            return -1;
+        } finally {
+            synchronized (mLock) {
+                mReadCount++;
+            }
+        }
+        synchronized (mLock) {
+            mAppliedStates.put(componentName, state);
+        }
+        return state;
+    }
+
+    private String getStats() {
+        synchronized (mLock) {
+            return "requests=" + mRequestCount + " reads=" + mReadCount
+                    + " writes=" + mWriteCount + " savedWrites=" + (mRequestCount - mWriteCount);
+        }
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "ComponentStateEngine " + getStats());
+    }
+
+    public void logStats() {
+        Log.i(TAG, "Component state " + getStats());
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.setupwizard.util;
+
+import static android.telephony.SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+
+import static org.lineageos.setupwizard.SetupWizardApp.LOGV;
+
+import android.os.SystemClock;
+import android.telephony.SubscriptionManager;
+import android.util.Log;
+
+import java.io.PrintWriter;
+
+/**
+ * Switches the default data subscription, one switch at a time.
+ *
+ * A switch goes from idle to requested when the new subscription is handed to the system. It
+ * ends as confirmed once the default data subscription is reported changed to it, or as timed
+ * out once its deadline has passed. Selecting another subscription while a switch is on its way
+ * marks that switch superseded: it is left to finish, then the last selection is switched to,
+ * so any number of quick selections costs at most two switches. Confirmed latencies go to
+ * {@link ReadinessHistory}, which also sets the deadline.
+ */
+public final class DataSubSwitch {
+
+    private static final String TAG = DataSubSwitch.class.getSimpleName();
+
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_REQUESTED = 1;
+    public static final int STATE_SUPERSEDED = 2;
+    public static final int STATE_CONFIRMED = 3;
+    public static final int STATE_TIMED_OUT = 4;
+
+    interface Callback {
+        /**
+         * Called, with the switch locked, when a switch is requested or ends.
+         */
+        void onSwitchStateChanged(int state, int fromSubId, int toSubId);
+    }
+
+    private final SubscriptionManager mSubscriptionManager;
+    private final Callback mCallback;
+
+    private int mState = STATE_IDLE;
+    private int mFromSubId = INVALID_SUBSCRIPTION_ID;
+    private int mTargetSubId = INVALID_SUBSCRIPTION_ID;
+    private int mNextSubId = INVALID_SUBSCRIPTION_ID;
+    private long mRequestMillis;
+    private TaskScheduler.Task mDeadline;
+
+    private int mRequestCount;
+    private int mCoalescedCount;
+    private int mConfirmedCount;
+    private int mTimedOutCount;
+    private int mSupersededCount;
+    private int mLatencyCount;
+    private long mTotalLatencyMillis;
+    private long mMaxLatencyMillis;
+
+    DataSubSwitch(SubscriptionManager subscriptionManager, Callback callback) {
+        mSubscriptionManager = subscriptionManager;
+        mCallback = callback;
+    }
+
+    public static String stateToString(int state) {
+        switch (state) {
+            case STATE_IDLE:
+                return "idle";
+            case STATE_REQUESTED:
+                return "requested";
+            case STATE_SUPERSEDED:
+                return "superseded";
+            case STATE_CONFIRMED:
+                return "confirmed";
+            case STATE_TIMED_OUT:
+                return "timedOut";
+            default:
+                return "unknown(" + state + ")";
+        }
+    }
+
+    /**
+     * Makes the given subscription the default data one, once the switch on its way if any
+     * has ended.
+     */
+    synchronized void request(int subId) {
+        if (LOGV) {
+            Log.v(TAG, "request " + subId + " in " + this);
+        }
+        if (mState == STATE_IDLE) {
+            if (subId != SubscriptionManager.getDefaultDataSubscriptionId()) {
+                start(subId);
+            }
+            return;
+        }
+        mCoalescedCount++;
+        if (subId == mTargetSubId) {
+            // Back to where the switch on its way goes anyway.
+            mState = STATE_REQUESTED;
+            mNextSubId = INVALID_SUBSCRIPTION_ID;
+        } else {
+            mState = STATE_SUPERSEDED;
+            mNextSubId = subId;
+        }
+    }
+
+    private void start(int subId) {
+        mState = STATE_REQUESTED;
+        mFromSubId = SubscriptionManager.getDefaultDataSubscriptionId();
+        mTargetSubId = subId;
+        mRequestMillis = SystemClock.elapsedRealtime();
+        mRequestCount++;
+        mSubscriptionManager.setDefaultDataSubId(subId);
+        mDeadline = TaskScheduler.getInstance().runOnMainDelayed("DataSubSwitch.deadline",
+                this::onDeadline,
+                ReadinessHistory.getInstance().getTimeoutMillis(ReadinessHistory.DATA_SUB_SWITCH));
+        mCallback.onSwitchStateChanged(STATE_REQUESTED, mFromSubId, subId);
+    }
+
+    /**
+     * Called when the system reports a new default data subscription.
+     */
+    synchronized void onDefaultDataSubIdChanged(int subId) {
+        if (mState != STATE_IDLE && subId == mTargetSubId) {
+            finish(true);
+        }
+    }
+
+    private synchronized void onDeadline() {
+        if (mState != STATE_IDLE) {
+            // The broadcast is missed while nobody listens, check before giving up.
+            finish(SubscriptionManager.getDefaultDataSubscriptionId() == mTargetSubId);
+        }
+    }
+
+    private void finish(boolean confirmed) {
+        mDeadline.cancel();
+        final long latency = SystemClock.elapsedRealtime() - mRequestMillis;
+        final int outcome;
+        if (mState == STATE_SUPERSEDED) {
+            outcome = STATE_SUPERSEDED;
+            mSupersededCount++;
+        } else if (confirmed) {
+            outcome = STATE_CONFIRMED;
+            mConfirmedCount++;
+        } else {
+            outcome = STATE_TIMED_OUT;
+            mTimedOutCount++;
+        }
+        if (confirmed) {
+            mLatencyCount++;
+            mTotalLatencyMillis += latency;
+            mMaxLatencyMillis = Math.max(mMaxLatencyMillis, latency);
+            ReadinessHistory.getInstance().add(ReadinessHistory.DATA_SUB_SWITCH, latency);
+        }
+        if (LOGV) {
+            Log.v(TAG, "switch to " + mTargetSubId + " " + stateToString(outcome) + " after "
+                    + latency + "ms");
+        }
+        final int next = mNextSubId;
+        mState = STATE_IDLE;
+        mNextSubId = INVALID_SUBSCRIPTION_ID;
+        mCallback.onSwitchStateChanged(outcome, mFromSubId, mTargetSubId);
+        if (next != INVALID_SUBSCRIPTION_ID
+                && next != SubscriptionManager.getDefaultDataSubscriptionId()) {
+            start(next);
+        }
+    }
+
+    /**
+     * @return Whether a switch is on its way.
+     */
+    public synchronized boolean isSwitching() {
+        return mState != STATE_IDLE;
+    }
+
+    /**
+     * @return The subscription that will be the default data one once the switches on their
+     * way have ended, or {@link SubscriptionManager#INVALID_SUBSCRIPTION_ID} if none is.
+     */
+    public synchronized int getTargetSubId() {
+        if (mState == STATE_IDLE) {
+            return INVALID_SUBSCRIPTION_ID;
+        }
+        return mState == STATE_SUPERSEDED ? mNextSubId : mTargetSubId;
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "DataSubSwitch " + this);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "{state=" + stateToString(mState) + " from=" + mFromSubId + " to=" + mTargetSubId
+                + " next=" + mNextSubId + " requests=" + mRequestCount
+                + " coalesced=" + mCoalescedCount + " confirmed=" + mConfirmedCount
+                + " timedOut=" + mTimedOutCount + " superseded=" + mSupersededCount
+                + " latencyMs avg=" + (mLatencyCount > 0 ? mTotalLatencyMillis / mLatencyCount : 0)
+                + " max=" + mMaxLatencyMillis + "}";
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.setupwizard.util;
+
+import static org.lineageos.setupwizard.SetupWizardApp.LOGV;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.hardware.face.FaceManager;
+import android.hardware.fingerprint.FingerprintManager;
+import android.os.UserManager;
+import android.util.Log;
+
+import org.lineageos.setupwizard.SetupWizardApp;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Immutable snapshot of the device features the wizard branches on.
+ *
+ * The snapshot is computed once in the background during startup and replaced as a whole when
+ * a user is added or removed, so readers never see a mix of old and new values. Every read
+ * that used to query a system service is counted against the queries actually made to build
+ * the snapshots.
+ *
+ * A biometric HAL that is not up yet reports no hardware, so only the PackageManager features
+ * and a detected sensor are final. While a sensor whose feature is declared is not detected,
+ * every read asks its manager again, and the first one that sees it replaces the snapshot.
+ */
+public final class DeviceCapabilities {
+
+    private static final String TAG = DeviceCapabilities.class.getSimpleName();
+
+    private static final AtomicReference<DeviceCapabilities> sCurrent = new AtomicReference<>();
+    private static final AtomicInteger sQueryCount = new AtomicInteger();
+    private static final AtomicInteger sReadCount = new AtomicInteger();
+    private static boolean sReceiverRegistered;
+
+    private final boolean mHasWifi;
+    private final boolean mHasTelephony;
+    private final boolean mHasLeanback;
+    private final boolean mHasFingerprintFeature;
+    private final boolean mHasFaceFeature;
+    private final boolean mHasFingerprint;
+    private final boolean mHasFace;
+    private final boolean mHasMultipleUsers;
+    private final Context mContext;
+
+    private static final BroadcastReceiver sReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final DeviceCapabilities current = sCurrent.get();
+            if (current == null) {
+                return;
+            }
+            final DeviceCapabilities updated = new DeviceCapabilities(current,
+                    current.mHasFingerprint, current.mHasFace, queryMultipleUsers(context));
+            // Only replace the snapshot we derived from, a concurrent update wins otherwise.
+            if (sCurrent.compareAndSet(current, updated) && LOGV) {
+                Log.v(TAG, "updated " + updated);
+            }
+        }
+    };
+
+    private DeviceCapabilities(Context context) {
+        final PackageManager pm = context.getPackageManager();
+        mContext = context;
+        mHasWifi = hasSystemFeature(pm, PackageManager.FEATURE_WIFI);
+        mHasTelephony = hasSystemFeature(pm, PackageManager.FEATURE_TELEPHONY);
+        mHasLeanback = hasSystemFeature(pm, PackageManager.FEATURE_LEANBACK);
+        mHasFingerprintFeature = hasSystemFeature(pm, PackageManager.FEATURE_FINGERPRINT);
+        mHasFaceFeature = hasSystemFeature(pm, PackageManager.FEATURE_FACE);
+        mHasFingerprint = mHasFingerprintFeature && queryFingerprint(context);
+        mHasFace = mHasFaceFeature && queryFace(context);
+        mHasMultipleUsers = queryMultipleUsers(context);
+    }
+
+    private DeviceCapabilities(DeviceCapabilities other, boolean hasFingerprint,
+            boolean hasFace, boolean hasMultipleUsers) {
+        mContext = other.mContext;
+        mHasWifi = other.mHasWifi;
+        mHasTelephony = other.mHasTelephony;
+        mHasLeanback = other.mHasLeanback;
+        mHasFingerprintFeature = other.mHasFingerprintFeature;
+        mHasFaceFeature = other.mHasFaceFeature;
+        mHasFingerprint = hasFingerprint;
+        mHasFace = hasFace;
+        mHasMultipleUsers = hasMultipleUsers;
+    }
+
+    private static boolean hasSystemFeature(PackageManager pm, String feature) {
+        sQueryCount.incrementAndGet();
+        return pm.hasSystemFeature(feature);
+    }
+
+    private static boolean queryFingerprint(Context context) {
+        sQueryCount.incrementAndGet();
+        return context.getSystemService(FingerprintManager.class).isHardwareDetected();
+    }
+
+    private static boolean queryFace(Context context) {
+        sQueryCount.incrementAndGet();
+        return context.getSystemService(FaceManager.class).isHardwareDetected();
+    }
+
+    private static boolean queryMultipleUsers(Context context) {
+        sQueryCount.incrementAndGet();
+        return context.getSystemService(UserManager.class).getUsers().size() > 1;
+    }
+
+    /**
+     * Computes the first snapshot and starts listening for the changes it depends on.
+     */
+    public static void initInstance(Context context) {
+        context = context.getApplicationContext();
+        sCurrent.compareAndSet(null, new DeviceCapabilities(context));
+        synchronized (DeviceCapabilities.class) {
+            if (!sReceiverRegistered) {
+                IntentFilter filter = new IntentFilter();
+                filter.addAction(Intent.ACTION_USER_ADDED);
+                filter.addAction(Intent.ACTION_USER_REMOVED);
+                context.registerReceiver(sReceiver, filter);
+                sReceiverRegistered = true;
+            }
+        }
+    }
+
+    public static DeviceCapabilities get(Context context) {
+        DeviceCapabilities current = sCurrent.get();
+        if (current == null) {
+            SetupWizardApp.awaitStartupTask(SetupWizardApp.TASK_DEVICE_CAPABILITIES);
+            current = sCurrent.get();
+            if (current == null) {
+                // Not started through SetupWizardApp.onCreate, build one on the spot.
+                sCurrent.compareAndSet(null,
+                        new DeviceCapabilities(context.getApplicationContext()));
+                current = sCurrent.get();
+            }
+        }
+        return current;
+    }
+
+    private boolean read(boolean value) {
+        sReadCount.incrementAndGet();
+        return value;
+    }
+
+    public boolean hasWifi() {
+        return read(mHasWifi);
+    }
+
+    public boolean hasTelephony() {
+        return read(mHasTelephony);
+    }
+
+    public boolean hasLeanback() {
+        return read(mHasLeanback);
+    }
+
+    public boolean hasFingerprint() {
+        if (mHasFingerprint || !mHasFingerprintFeature) {
+            return read(mHasFingerprint);
+        }
+        if (!queryFingerprint(mContext)) {
+            return false;
+        }
+        replace(new DeviceCapabilities(this, true, mHasFace, mHasMultipleUsers));
+        return true;
+    }
+
+    public boolean hasFace() {
+        if (mHasFace || !mHasFaceFeature) {
+            return read(mHasFace);
+        }
+        if (!queryFace(mContext)) {
+            return false;
+        }
+        replace(new DeviceCapabilities(this, mHasFingerprint, true, mHasMultipleUsers));
+        return true;
+    }
+
+    /**
+     * Replaces this snapshot with one that has a sensor detected since. A snapshot replaced
+     * in the meantime keeps asking until it sees the sensor too.
+     */
+    private void replace(DeviceCapabilities updated) {
+        if (sCurrent.compareAndSet(this, updated) && LOGV) {
+            Log.v(TAG, "updated " + updated);
+        }
+    }
+
+    public boolean hasBiometric() {
+        return hasFingerprint() || hasFace();
+    }
+
+    public boolean hasMultipleUsers() {
+        return read(mHasMultipleUsers);
+    }
+
+    /**
+     * @return The number of system service queries avoided so far, as reads served from a
+     * snapshot minus the queries made to build the snapshots.
+     */
+    public static int getSavedQueryCount() {
+        return sReadCount.get() - sQueryCount.get();
+    }
+
+    public static void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "DeviceCapabilities " + sCurrent.get()
+                + " reads=" + sReadCount.get() + " queries=" + sQueryCount.get()
+                + " saved=" + getSavedQueryCount());
+    }
+
+    @Override
+    public String toString() {
+        return "{wifi=" + mHasWifi + " telephony=" + mHasTelephony + " leanback=" + mHasLeanback
+                + " fingerprint=" + mHasFingerprint + " face=" + mHasFace
+                + " multipleUsers=" + mHasMultipleUsers + "}";
+    }
+}
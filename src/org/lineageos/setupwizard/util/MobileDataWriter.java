@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.setupwizard.util;
+
+import static org.lineageos.setupwizard.SetupWizardApp.LOGV;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.lineageos.setupwizard.SetupWizardApp;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Turns mobile data on and off away from the main thread.
+ *
+ * Writes go through a serial lane of the {@link TaskScheduler}, one at a time. Until a write
+ * has run, {@link #isEnabled()} reports the state asked for, so the screens show it right
+ * away. Requests made while a write is queued replace its state, so a burst of toggles costs
+ * at most one write besides the one running. A write is only skipped when the state was
+ * written last and the system still reports it. A write that throws or that the settings
+ * provider refuses rolls the state back to what the system reports and tells the listeners,
+ * on the main thread.
+ */
+public final class MobileDataWriter {
+
+    private static final String TAG = MobileDataWriter.class.getSimpleName();
+
+    public interface Listener {
+        /**
+         * Called on the main thread when a write failed and the state was rolled back.
+         */
+        void onMobileDataRolledBack(boolean enabled);
+    }
+
+    private static MobileDataWriter sInstance;
+
+    private final Context mContext;
+    // Only used on the main thread.
+    private final ArrayList<Listener> mListeners = new ArrayList<>();
+
+    private boolean mEnabled;
+    private Boolean mWritten;
+    private boolean mWritePending;
+
+    private int mRequestCount;
+    private int mCoalescedCount;
+    private int mWriteCount;
+    private int mSkippedCount;
+    private int mFailedCount;
+    private long mTotalWriteMillis;
+    private long mMaxWriteMillis;
+
+    /**
+     * Creates the instance and turns mobile data off, as it is until the user turns it on.
+     */
+    public static void initInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new MobileDataWriter(context.getApplicationContext());
+            sInstance.setEnabled(false);
+        }
+    }
+
+    public static MobileDataWriter getInstance() {
+        SetupWizardApp.awaitStartupTask(SetupWizardApp.TASK_MOBILE_DATA);
+        return sInstance;
+    }
+
+    private MobileDataWriter(Context context) {
+        mContext = context;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Asks for mobile data to be turned on or off. Returns right away, the write follows on
+     * the lane.
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        mRequestCount++;
+        mEnabled = enabled;
+        if (mWritePending) {
+            mCoalescedCount++;
+            return;
+        }
+        mWritePending = true;
+        TaskScheduler.getInstance().runOnLane(TAG, "MobileDataWriter.write", this::write);
+    }
+
+    /**
+     * @return The state last asked for, which the system is in once the writes are done.
+     */
+    public synchronized boolean isEnabled() {
+        return mEnabled;
+    }
+
+    private void write() {
+        final boolean enabled;
+        final Boolean lastWritten;
+        synchronized (this) {
+            mWritePending = false;
+            enabled = mEnabled;
+            lastWritten = mWritten;
+        }
+        // Toggled back before the previous state was written. Something else may have changed
+        // the state since our last write, so it is only trusted while the system agrees.
+        if (lastWritten != null && lastWritten == enabled
+                && SetupWizardUtils.isMobileDataEnabled(mContext) == enabled) {
+            synchronized (this) {
+                mSkippedCount++;
+            }
+            return;
+        }
+        final long start = SystemClock.elapsedRealtime();
+        boolean written = false;
+        try {
+            written = SetupWizardUtils.setMobileDataEnabled(mContext, enabled);
+            if (!written) {
+                Log.w(TAG, "Unable to write the mobile data setting " + (enabled ? "on" : "off"));
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Unable to turn mobile data " + (enabled ? "on" : "off"), e);
+        }
+        final long millis = SystemClock.elapsedRealtime() - start;
+        if (LOGV) {
+            Log.v(TAG, "Turning mobile data " + (enabled ? "on" : "off")
+                    + (written ? "" : " failed") + " after " + millis + "ms");
+        }
+        final boolean actual = written ? enabled : SetupWizardUtils.isMobileDataEnabled(mContext);
+        final boolean rolledBack;
+        synchronized (this) {
+            mWriteCount++;
+            mTotalWriteMillis += millis;
+            mMaxWriteMillis = Math.max(mMaxWriteMillis, millis);
+            mWritten = actual;
+            // A newer request is written next and decides the state instead.
+            rolledBack = !written && !mWritePending;
+            if (!written) {
+                mFailedCount++;
+                if (rolledBack) {
+                    mEnabled = actual;
+                }
+            }
+        }
+        if (rolledBack) {
+            TaskScheduler.getInstance().runOnMain("MobileDataWriter.rollBack", () -> {
+                for (Listener listener : new ArrayList<>(mListeners)) {
+                    listener.onMobileDataRolledBack(actual);
+                }
+            });
+        }
+    }
+
+    public static void dump(String prefix, PrintWriter writer) {
+        final MobileDataWriter dataWriter = sInstance;
+        if (dataWriter == null) {
+            return;
+        }
+        synchronized (dataWriter) {
+            writer.println(prefix + "MobileDataWriter enabled=" + dataWriter.mEnabled
+                    + " written=" + dataWriter.mWritten + " pending=" + dataWriter.mWritePending
+                    + " requests=" + dataWriter.mRequestCount
+                    + " coalesced=" + dataWriter.mCoalescedCount
+                    + " skipped=" + dataWriter.mSkippedCount
+                    + " writes=" + dataWriter.mWriteCount + " failed=" + dataWriter.mFailedCount
+                    + " writeMs avg=" + (dataWriter.mWriteCount > 0
+                            ? dataWriter.mTotalWriteMillis / dataWriter.mWriteCount : 0)
+                    + " max=" + dataWriter.mMaxWriteMillis);
+        }
+    }
+}
@@ -18,32 +18,143 @@ package org.lineageos.setupwizard.util;
 
 import static org.lineageos.setupwizard.SetupWizardApp.LOGV;
 
-import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
+import android.net.Network;
+import android.net.NetworkCapabilities;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.ArrayMap;
 import android.util.Log;
 
+import org.lineageos.setupwizard.SetupWizardApp;
+
+import java.util.Objects;
+import java.util.concurrent.Executor;
+
+/**
+ * Follows the default network through a {@link ConnectivityManager.NetworkCallback}.
+ *
+ * The callback runs on a background thread and publishes an immutable {@link State}, which
+ * screens can read as often as they like without a binder call. Listeners are told about every
+ * new state on the executor they were added with.
+ */
 public class NetworkMonitor {
 
     public static final String TAG = NetworkMonitor.class.getSimpleName();
 
-    private static NetworkMonitor sInstance;
+    private static volatile NetworkMonitor sInstance;
 
-    private final BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver() {
-        public void onReceive(Context context, Intent intent) {
-            if (LOGV) {
-                Log.v(TAG, intent.toString());
-            }
-            NetworkMonitor.this.updateNetworkStatus(context);
+    /**
+     * The default network as last seen by the monitor.
+     */
+    public static final class State {
+        private final Network mNetwork;
+        private final boolean mWifi;
+        private final boolean mCellular;
+        private final boolean mEthernet;
+        private final boolean mValidated;
+        private final boolean mCaptivePortal;
+        private final int mChangeCount;
+
+        private State(Network network, NetworkCapabilities caps, int changeCount) {
+            mNetwork = caps != null ? network : null;
+            mWifi = caps != null && caps.hasTransport(NetworkCapabilities.TRANSPORT_WIFI);
+            mCellular = caps != null
+                    && caps.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR);
+            mEthernet = caps != null
+                    && caps.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET);
+            mValidated = caps != null
+                    && caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED);
+            mCaptivePortal = caps != null
+                    && caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_CAPTIVE_PORTAL);
+            mChangeCount = changeCount;
+        }
+
+        /**
+         * @return The default network, or null if there is none.
+         */
+        public Network getNetwork() {
+            return mNetwork;
         }
-    };
-    private Context mContext = null;
-    private boolean mNetworkConnected = false;
-    private NetworkInfo mNetworkInfo = null;
+
+        public boolean isConnected() {
+            return mNetwork != null;
+        }
+
+        public boolean isWifi() {
+            return mWifi;
+        }
+
+        public boolean isCellular() {
+            return mCellular;
+        }
+
+        public boolean isEthernet() {
+            return mEthernet;
+        }
+
+        public boolean isValidated() {
+            return mValidated;
+        }
+
+        public boolean isCaptivePortal() {
+            return mCaptivePortal;
+        }
+
+        /**
+         * @return A number that grows with every change of the default network or of its
+         * capabilities, so a poller can tell whether anything changed since it last looked.
+         */
+        public int getChangeCount() {
+            return mChangeCount;
+        }
+
+        private boolean sameAs(State other) {
+            return Objects.equals(mNetwork, other.mNetwork) && mWifi == other.mWifi
+                    && mCellular == other.mCellular && mEthernet == other.mEthernet
+                    && mValidated == other.mValidated && mCaptivePortal == other.mCaptivePortal;
+        }
+
+        @Override
+        public String toString() {
+            return "{network=" + mNetwork + " wifi=" + mWifi + " cellular=" + mCellular
+                    + " ethernet=" + mEthernet + " validated=" + mValidated
+                    + " captivePortal=" + mCaptivePortal + " changes=" + mChangeCount + "}";
+        }
+    }
+
+    public interface NetworkStateListener {
+        void onNetworkStateChanged(State state);
+    }
+
+    private final ConnectivityManager.NetworkCallback mNetworkCallback =
+            new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onCapabilitiesChanged(Network network, NetworkCapabilities caps) {
+                    mCallbackCount++;
+                    setState(network, caps);
+                }
+
+                @Override
+                public void onLost(Network network) {
+                    mCallbackCount++;
+                    CaptivePortalProbe.forget(network);
+                    if (network.equals(mState.mNetwork)) {
+                        setState(null, null);
+                    }
+                }
+            };
+
+    private final Context mContext;
+    private final ConnectivityManager mConnectivityManager;
+    private final ArrayMap<NetworkStateListener, Executor> mListeners = new ArrayMap<>();
+    private volatile State mState = new State(null, null, 0);
+
+    private final Handler mHandler;
+    private int mRefCount;
+    private volatile int mCallbackCount;
 
     public static void initInstance(Context context) {
         if (sInstance == null) {
@@ -52,6 +163,7 @@ public class NetworkMonitor {
     }
 
     public static NetworkMonitor getInstance() {
+        SetupWizardApp.awaitStartupTask(SetupWizardApp.TASK_NETWORK_MONITOR);
         return sInstance;
     }
 
@@ -60,59 +172,150 @@ public class NetworkMonitor {
         if (LOGV) {
             Log.v(TAG, "Starting NetworkMonitor");
         }
-        IntentFilter filter = new IntentFilter();
-        filter.addAction("android.net.conn.CONNECTIVITY_CHANGE");
-        context.registerReceiver(mBroadcastReceiver, filter);
-        new Handler().post(new Runnable() {
-            public void run() {
-                updateNetworkStatus(mContext);
+        mConnectivityManager = mContext.getSystemService(ConnectivityManager.class);
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Starts following the default network if nobody was. Every call must be balanced by a
+     * call to {@link #release()}.
+     *
+     * The state is queried again on the monitor thread, ahead of the first callback. Until
+     * then, {@link #getState()} returns the state last seen, or an unknown one.
+     */
+    public synchronized void acquire() {
+        if (mRefCount++ == 0) {
+            if (LOGV) {
+                Log.v(TAG, "startListening");
+            }
+            // Nothing kept the state current while we weren't listening.
+            mHandler.post(this::seedState);
+            mConnectivityManager.registerDefaultNetworkCallback(mNetworkCallback, mHandler);
+        }
+    }
+
+    private void seedState() {
+        synchronized (this) {
+            if (mRefCount == 0) {
+                return;
+            }
+        }
+        final Network network = mConnectivityManager.getActiveNetwork();
+        setState(network, network != null
+                ? mConnectivityManager.getNetworkCapabilities(network) : null);
+    }
+
+    public synchronized void release() {
+        if (mRefCount == 0) {
+            Log.w(TAG, "release() without acquire()");
+            return;
+        }
+        if (--mRefCount == 0) {
+            if (LOGV) {
+                Log.v(TAG, "stopListening callbacks=" + mCallbackCount);
             }
-        });
+            mConnectivityManager.unregisterNetworkCallback(mNetworkCallback);
+            // Lost networks are not seen from now on, their verdicts would be kept forever.
+            CaptivePortalProbe.forgetAll();
+        }
+    }
+
+    public int getCallbackCount() {
+        return mCallbackCount;
+    }
+
+    /**
+     * @return The current default network state. This is free while the monitor is acquired;
+     * otherwise nothing keeps it current and it is queried from the ConnectivityManager.
+     */
+    public State getState() {
+        synchronized (this) {
+            if (mRefCount > 0) {
+                return mState;
+            }
+        }
+        final Network network = mConnectivityManager.getActiveNetwork();
+        return new State(network, network != null
+                ? mConnectivityManager.getNetworkCapabilities(network) : null,
+                mState.mChangeCount);
+    }
+
+    /**
+     * Adds a listener called on the main thread.
+     */
+    public void addListener(NetworkStateListener listener) {
+        addListener(listener, mContext.getMainExecutor());
+    }
+
+    public void addListener(NetworkStateListener listener, Executor executor) {
+        synchronized (mListeners) {
+            mListeners.put(listener, executor);
+        }
+    }
+
+    public void removeListener(NetworkStateListener listener) {
+        synchronized (mListeners) {
+            mListeners.remove(listener);
+        }
     }
 
     public boolean isNetworkConnected() {
+        final boolean connected = getState().isConnected();
         if (LOGV) {
-            Log.v(TAG, "isNetworkConnected() returns " + mNetworkConnected);
+            Log.v(TAG, "isNetworkConnected() returns " + connected);
         }
-        return mNetworkConnected;
+        return connected;
     }
 
     public boolean isWifiConnected() {
-        boolean wifiConnected = (mNetworkConnected && mNetworkInfo != null &&
-                mNetworkInfo.getType() == 1);
+        final boolean wifiConnected = getState().isWifi();
         if (LOGV) {
             Log.v(TAG, "isWifiConnected() returns " + wifiConnected);
         }
         return wifiConnected;
     }
 
-    private void onNetworkConnected(NetworkInfo ni) {
-        if (LOGV) {
-            Log.v(TAG, "onNetworkConnected()");
-        }
-        mNetworkConnected = true;
-        mNetworkInfo = ni;
+    /**
+     * @return Whether the default network is Ethernet. Answered from the followed state while
+     * the monitor is acquired; otherwise this costs the two binder calls of {@link #getState()}
+     * and must not be made on the main thread.
+     */
+    public boolean isEthernetConnected() {
+        return getState().isEthernet();
     }
 
-    private void onNetworkDisconnected() {
+    private synchronized void setState(Network network, NetworkCapabilities caps) {
+        final State current = mState;
+        final State state = new State(network, caps, current.mChangeCount + 1);
+        if (state.sameAs(current)) {
+            return;
+        }
+        mState = state;
         if (LOGV) {
-            Log.v(TAG, "onNetworkDisconnected()");
+            Log.v(TAG, "state " + state);
         }
-        mNetworkConnected = false;
-        mNetworkInfo = null;
-    }
-
-    private boolean updateNetworkStatus(Context context) {
-        ConnectivityManager cm = context.getSystemService(ConnectivityManager.class);
-        if (cm != null) {
-            NetworkInfo ni = cm.getActiveNetworkInfo();
-            boolean isConnected = ni != null && ni.isConnected();
-            if (isConnected && !mNetworkConnected) {
-                onNetworkConnected(ni);
-            } else if (!isConnected && mNetworkConnected) {
-                onNetworkDisconnected();
-            }
+        if (state.isWifi() && !Objects.equals(state.mNetwork, current.mNetwork)) {
+            // Have the portal verdict ready by the time the user leaves the Wi-Fi picker.
+            final Network network = state.mNetwork;
+            TaskScheduler.getInstance().runInBackground("NetworkMonitor.probe",
+                    () -> CaptivePortalProbe.probe(mContext, network));
+        }
+        final ArrayMap<NetworkStateListener, Executor> listeners;
+        synchronized (mListeners) {
+            listeners = new ArrayMap<>(mListeners);
+        }
+        for (int i = 0; i < listeners.size(); i++) {
+            final NetworkStateListener listener = listeners.keyAt(i);
+            listeners.valueAt(i).execute(() -> {
+                synchronized (mListeners) {
+                    if (!mListeners.containsKey(listener)) {
+                        return;
+                    }
+                }
+                listener.onNetworkStateChanged(state);
+            });
         }
-        return mNetworkConnected;
     }
 }
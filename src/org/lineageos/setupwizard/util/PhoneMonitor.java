@@ -16,10 +16,6 @@
 
 package org.lineageos.setupwizard.util;
 
-import static android.telephony.PhoneStateListener.LISTEN_DATA_CONNECTION_STATE;
-import static android.telephony.PhoneStateListener.LISTEN_NONE;
-import static android.telephony.PhoneStateListener.LISTEN_SERVICE_STATE;
-import static android.telephony.PhoneStateListener.LISTEN_SIGNAL_STRENGTHS;
 import static android.telephony.ServiceState.STATE_EMERGENCY_ONLY;
 import static android.telephony.ServiceState.STATE_IN_SERVICE;
 import static android.telephony.ServiceState.STATE_OUT_OF_SERVICE;
@@ -52,45 +48,104 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Handler;
 import android.os.HandlerExecutor;
-import android.os.Looper;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
 import android.sysprop.TelephonyProperties;
-import android.telephony.PhoneStateListener;
 import android.telephony.ServiceState;
 import android.telephony.SignalStrength;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
 import android.telephony.SubscriptionManager.OnSubscriptionsChangedListener;
+import android.telephony.TelephonyCallback;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import com.android.internal.telephony.PhoneConstants;
 import com.android.internal.telephony.TelephonyIntents;
 
+import org.lineageos.setupwizard.SetupWizardApp;
+
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.Comparator;
 import java.util.List;
-
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Tracks the state of the active subscriptions for the screens that show it.
+ *
+ * Telephony callbacks and broadcasts are handled on a dedicated background thread. A listener
+ * is only called when the state it is told about differs from the last one seen, at most once
+ * per frame and subscription for each kind of state.
+ */
 public class PhoneMonitor {
 
     public static final String TAG = PhoneMonitor.class.getSimpleName();
 
-    private static PhoneMonitor sInstance;
+    private static volatile PhoneMonitor sInstance;
     private final Context mContext;
     private final TelephonyManager mTelephony;
     private SubscriptionManager mSubscriptionManager;
-    private final ArrayList<SubscriptionStateListener> mListeners = new ArrayList<>();
+    private static final int EVENT_SERVICE_STATE = 1;
+    private static final int EVENT_DATA_CONNECTION_STATE = 2;
+    private static final int EVENT_SIGNAL_STRENGTHS = 3;
+    private static final int EVENT_SIM_STATE = 4;
+    private static final int EVENT_DEFAULT_DATA_SUBSCRIPTION = 5;
+    private static final int EVENT_ACTIVE_DATA_SUBSCRIPTION = 6;
+    private static final int EVENT_RADIO_POWERED = 7;
+
+    private final CoalescingDispatcher<SubscriptionStateListener> mDispatcher =
+            new CoalescingDispatcher<>();
     private final SparseArray<SubscriptionStateTracker> mTrackers = new SparseArray<>();
 
-    private int mChangingToDataSubId = -1;
+    private DataSubSwitch mDataSubSwitch;
+
+    private final Handler mHandler;
+    private final Executor mExecutor;
+    private int mRefCount;
+    // Once setup is finished nothing listens anymore, whatever references are still held.
+    private boolean mSetupFinished;
+    private volatile boolean mListening;
+    private volatile boolean mRadioPowered;
+
+    // Active subscriptions by subId, only kept while listening keeps them current.
+    private volatile SparseArray<SubscriptionSnapshot> mSnapshots;
+    private final Object mSnapshotLock = new Object();
+    private int mSnapshotBuildCount;
+    private int mSnapshotPublishedBuild;
+
+    private int mTrackerRegisterCount;
+    private int mTrackerUnregisterCount;
+
+    // Only touched on the monitor thread.
+    private final SparseIntArray mSimStates = new SparseIntArray();
+    private int mDefaultDataSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+
+    private final AtomicInteger mCallbackCount = new AtomicInteger();
 
     private final BroadcastReceiver mIntentReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
+            mCallbackCount.incrementAndGet();
             if (intent.getAction().equals(TelephonyIntents.ACTION_SIM_STATE_CHANGED)) {
                 final int sub = intent.getIntExtra(PhoneConstants.SUBSCRIPTION_KEY, -1);
                 final int state = mTelephony.getSimState(sub);
+                final SparseArray<SubscriptionSnapshot> snapshots = mSnapshots;
+                final SubscriptionSnapshot current = snapshots != null ? snapshots.get(sub) : null;
+                if (current != null) {
+                    // Queried before taking the lock, the callbacks may update it meanwhile.
+                    final SubscriptionSnapshot queried =
+                            createSnapshot(current.getSubscriptionInfo());
+                    updateSnapshot(sub, snapshot -> queried.withCallbackState(snapshot));
+                }
                 simStateChanged(sub, state);
             } else if (intent.getAction()
                     .equals(TelephonyIntents.ACTION_DEFAULT_DATA_SUBSCRIPTION_CHANGED)) {
@@ -99,46 +154,141 @@ public class PhoneMonitor {
         }
     };
 
-    private class SubscriptionStateTracker extends PhoneStateListener {
+    private class SubscriptionStateTracker extends TelephonyCallback implements
+            TelephonyCallback.ServiceStateListener,
+            TelephonyCallback.SignalStrengthsListener,
+            TelephonyCallback.DataConnectionStateListener {
 
-        private ServiceState mServiceState;
-        private int mSubId = -1;
+        private final int mSubId;
+        private final TelephonyManager mSubTelephony;
+        private volatile ServiceState mServiceState;
+        private SignalStrength mSignalStrength;
+        private int mDataState = DATA_UNKNOWN;
+        private int mNetworkType = -1;
 
-        public SubscriptionStateTracker(int subId) {
-            super(new HandlerExecutor(new Handler(Looper.myLooper())));
+        SubscriptionStateTracker(int subId) {
             mSubId = subId;
+            mSubTelephony = mTelephony.createForSubscriptionId(subId);
         }
 
+        void register() {
+            mSubTelephony.registerTelephonyCallback(mExecutor, this);
+        }
+
+        void unregister() {
+            mSubTelephony.unregisterTelephonyCallback(this);
+        }
+
+        @Override
         public void onServiceStateChanged(ServiceState serviceState) {
+            mCallbackCount.incrementAndGet();
+            if (Objects.equals(mServiceState, serviceState)) {
+                return;
+            }
             mServiceState = serviceState;
+            updateSnapshot(mSubId, snapshot -> snapshot.withServiceState(serviceState,
+                    mSubTelephony.getNetworkOperatorName()));
             if (LOGV) {
                 logPhoneState("onServiceStateChanged state=\"" + serviceState + "\" ");
             }
-            for (SubscriptionStateListener listener : mListeners) {
-                listener.onServiceStateChanged(mSubId, serviceState);
-            }
+            dispatch(mSubId, EVENT_SERVICE_STATE,
+                    listener -> listener.onServiceStateChanged(mSubId, serviceState));
         }
 
+        @Override
         public void onDataConnectionStateChanged(int state, int networkType) {
-            for (SubscriptionStateListener listener : mListeners) {
-                listener.onDataConnectionStateChanged(mSubId, state, networkType);
+            mCallbackCount.incrementAndGet();
+            if (mDataState == state && mNetworkType == networkType) {
+                return;
             }
+            mDataState = state;
+            mNetworkType = networkType;
+            updateSnapshot(mSubId, snapshot -> snapshot.withDataState(state));
+            dispatch(mSubId, EVENT_DATA_CONNECTION_STATE,
+                    listener -> listener.onDataConnectionStateChanged(mSubId, state,
+                            networkType));
         }
 
+        @Override
         public void onSignalStrengthsChanged(SignalStrength signalStrength) {
-            for (SubscriptionStateListener listener : mListeners) {
-                listener.onSignalStrengthsChanged(mSubId, signalStrength);
+            mCallbackCount.incrementAndGet();
+            if (Objects.equals(mSignalStrength, signalStrength)) {
+                return;
+            }
+            mSignalStrength = signalStrength;
+            updateSnapshot(mSubId, snapshot -> snapshot.withSignalStrength(signalStrength));
+            dispatch(mSubId, EVENT_SIGNAL_STRENGTHS,
+                    listener -> listener.onSignalStrengthsChanged(mSubId, signalStrength));
+        }
+    }
+
+    private class ActiveDataSubscriptionTracker extends TelephonyCallback implements
+            TelephonyCallback.ActiveDataSubscriptionIdListener {
+
+        private int mActiveDataSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+
+        @Override
+        public void onActiveDataSubscriptionIdChanged(int subId) {
+            mCallbackCount.incrementAndGet();
+            if (mActiveDataSubId == subId) {
+                return;
+            }
+            mActiveDataSubId = subId;
+            dispatch(SubscriptionManager.INVALID_SUBSCRIPTION_ID,
+                    EVENT_ACTIVE_DATA_SUBSCRIPTION,
+                    listener -> listener.onActiveDataSubscriptionIdChanged(subId));
+        }
+    }
+
+    private final ActiveDataSubscriptionTracker mActiveDataSubscriptionTracker =
+            new ActiveDataSubscriptionTracker();
+
+    /**
+     * Watches the radio from the process start until it is first seen powered, whether or not
+     * a screen listens, so that the time the radio takes to come up is known.
+     */
+    private class RadioPowerTracker extends TelephonyCallback implements
+            TelephonyCallback.ServiceStateListener {
+
+        // The state right away on registration is the one the radio was in before.
+        private boolean mInitialState = true;
+
+        @Override
+        public void onServiceStateChanged(ServiceState serviceState) {
+            mCallbackCount.incrementAndGet();
+            final boolean initialState = mInitialState;
+            mInitialState = false;
+            if (serviceState == null || serviceState.getState() == STATE_POWER_OFF) {
+                return;
             }
+            mTelephony.unregisterTelephonyCallback(this);
+            mRadioPowered = true;
+            final long sinceStart = SystemClock.uptimeMillis() - Process.getStartUptimeMillis();
+            if (LOGV) {
+                Log.v(TAG, "Radio powered " + sinceStart + "ms after process start"
+                        + (initialState ? ", already when first seen" : ""));
+            }
+            if (!initialState) {
+                ReadinessHistory.getInstance().add(ReadinessHistory.RADIO_READY, sinceStart);
+            }
+            dispatch(SubscriptionManager.INVALID_SUBSCRIPTION_ID, EVENT_RADIO_POWERED,
+                    SubscriptionStateListener::onRadioPowered);
         }
     }
 
-    private final OnSubscriptionsChangedListener mOnSubscriptionsChangedListener =
+    // Package-private so tests can deliver a change queued before stopListening().
+    final OnSubscriptionsChangedListener mOnSubscriptionsChangedListener =
             new OnSubscriptionsChangedListener() {
                 public void onSubscriptionsChanged() {
+                    mCallbackCount.incrementAndGet();
                     if (LOGV) {
                         Log.d(TAG, "Subscriptions changed");
                     }
                     super.onSubscriptionsChanged();
+                    if (!mListening) {
+                        return;
+                    }
+                    buildSnapshots();
                     updatePhoneStateTrackers();
                 }
             };
@@ -151,11 +301,17 @@ public class PhoneMonitor {
 
     public static void onSetupFinished() {
         if (sInstance != null) {
-            sInstance.mContext.unregisterReceiver(sInstance.mIntentReceiver);
+            synchronized (sInstance) {
+                Log.i(TAG, "Setup finished, " + sInstance.getCallbackCount() + " callbacks, "
+                        + sInstance.getDeliveryCount() + " deliveries");
+                sInstance.mSetupFinished = true;
+                sInstance.stopListening();
+            }
         }
     }
 
     public static PhoneMonitor getInstance() {
+        SetupWizardApp.awaitStartupTask(SetupWizardApp.TASK_PHONE_MONITOR);
         return sInstance;
     }
 
@@ -167,93 +323,421 @@ public class PhoneMonitor {
         mTelephony = mContext.getSystemService(TelephonyManager.class);
         if (mTelephony != null) {
             mSubscriptionManager = SubscriptionManager.from(mContext);
-            mSubscriptionManager.addOnSubscriptionsChangedListener(mOnSubscriptionsChangedListener);
+            mDataSubSwitch = new DataSubSwitch(mSubscriptionManager, this::dataSubSwitchChanged);
+        }
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+        mExecutor = new HandlerExecutor(mHandler);
+        if (mTelephony != null) {
+            mTelephony.registerTelephonyCallback(mExecutor, new RadioPowerTracker());
+        }
+    }
+
+    /**
+     * Starts listening for phone state changes if nobody was. Every call must be balanced
+     * by a call to {@link #release()}. After setup finished, the references are still
+     * counted but nothing listens anymore.
+     */
+    public synchronized void acquire() {
+        if (mRefCount++ == 0 && !mSetupFinished) {
+            startListening();
+        }
+    }
+
+    public synchronized void release() {
+        if (mRefCount == 0) {
+            Log.w(TAG, "release() without acquire()");
+            return;
+        }
+        if (--mRefCount == 0) {
+            stopListening();
+        }
+    }
+
+    /**
+     * @return Whether the radio was seen powered since the process start.
+     */
+    public boolean isRadioPowered() {
+        return mRadioPowered;
+    }
+
+    /**
+     * @return The number of telephony callbacks and broadcasts received.
+     */
+    public int getCallbackCount() {
+        return mCallbackCount.get();
+    }
+
+    /**
+     * @return The number of changes handed to listeners.
+     */
+    public int getDeliveryCount() {
+        return mDispatcher.getDeliveryCount();
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "PhoneMonitor callbacks=" + getCallbackCount()
+                + " snapshotBuilds=" + getSnapshotBuildCount()
+                + " trackers registered=" + getTrackerRegisterCount()
+                + " unregistered=" + getTrackerUnregisterCount() + " dispatcher: " + mDispatcher);
+        if (mDataSubSwitch != null) {
+            mDataSubSwitch.dump(prefix + "  ", writer);
+        }
+        final SparseArray<SubscriptionSnapshot> snapshots = mSnapshots;
+        for (int i = 0; snapshots != null && i < snapshots.size(); i++) {
+            writer.println(prefix + "  " + snapshots.valueAt(i));
+        }
+    }
+
+    private int getSnapshotBuildCount() {
+        synchronized (mSnapshotLock) {
+            return mSnapshotBuildCount;
+        }
+    }
+
+    /**
+     * Queries the state of every active subscription, about 1 + 6n binder calls. The result
+     * is kept and updated by the callbacks while listening. The queries run outside the lock,
+     * the state only the callbacks report is carried over from the snapshots current when the
+     * result is kept, and a build that finished after a newer one is dropped.
+     */
+    private SparseArray<SubscriptionSnapshot> buildSnapshots() {
+        final int build;
+        synchronized (mSnapshotLock) {
+            build = ++mSnapshotBuildCount;
+        }
+        final SparseArray<SubscriptionSnapshot> snapshots = new SparseArray<>();
+        final List<SubscriptionInfo> subs = mTelephony != null
+                ? mSubscriptionManager.getActiveSubscriptionInfoList() : null;
+        if (subs != null) {
+            for (SubscriptionInfo sub : subs) {
+                snapshots.put(sub.getSubscriptionId(), createSnapshot(sub));
+            }
+        }
+        synchronized (mSnapshotLock) {
+            final SparseArray<SubscriptionSnapshot> current = mSnapshots;
+            for (int i = 0; current != null && i < snapshots.size(); i++) {
+                final SubscriptionSnapshot previous = current.get(snapshots.keyAt(i));
+                if (previous != null) {
+                    snapshots.setValueAt(i, snapshots.valueAt(i).withCallbackState(previous));
+                }
+            }
+            if (mListening && build > mSnapshotPublishedBuild) {
+                mSnapshotPublishedBuild = build;
+                mSnapshots = snapshots;
+            }
+        }
+        return snapshots;
+    }
+
+    private SubscriptionSnapshot createSnapshot(SubscriptionInfo sub) {
+        final int subId = sub.getSubscriptionId();
+        final TelephonyManager telephony = mTelephony.createForSubscriptionId(subId);
+        int lteOnCdmaMode = telephony.getLteOnCdmaMode(subId);
+        if (lteOnCdmaMode == LTE_ON_CDMA_UNKNOWN) {
+            lteOnCdmaMode = TelephonyProperties.lte_on_cdma_device().orElse(LTE_ON_CDMA_UNKNOWN);
+        }
+        return new SubscriptionSnapshot(sub, mTelephony.getSimState(sub.getSimSlotIndex()),
+                telephony.getCurrentPhoneType(), lteOnCdmaMode, telephony.getSimOperatorName(),
+                telephony.getNetworkOperatorName(), null, null, DATA_UNKNOWN);
+    }
+
+    private void updateSnapshot(int subId, UnaryOperator<SubscriptionSnapshot> update) {
+        synchronized (mSnapshotLock) {
+            final SparseArray<SubscriptionSnapshot> current = mSnapshots;
+            final SubscriptionSnapshot snapshot = current != null ? current.get(subId) : null;
+            if (snapshot == null) {
+                return;
+            }
+            final SparseArray<SubscriptionSnapshot> updated = current.clone();
+            updated.put(subId, update.apply(snapshot));
+            mSnapshots = updated;
+        }
+    }
+
+    /**
+     * @return The snapshots while listening, built first if the subscriptions were not seen
+     * yet, or null when not listening. Without the callbacks keeping them current, a read
+     * is cheaper answered by the one query it needs than by building every snapshot.
+     */
+    private SparseArray<SubscriptionSnapshot> getSnapshotMap() {
+        final SparseArray<SubscriptionSnapshot> snapshots = mSnapshots;
+        if (snapshots != null || !mListening) {
+            return snapshots;
+        }
+        return buildSnapshots();
+    }
+
+    /**
+     * @return The state of the given active subscription, or null if it is not active.
+     */
+    public SubscriptionSnapshot getSnapshot(int subId) {
+        final SparseArray<SubscriptionSnapshot> snapshots = getSnapshotMap();
+        if (snapshots != null) {
+            return snapshots.get(subId);
+        }
+        final SubscriptionInfo sub = mTelephony != null
+                ? mSubscriptionManager.getActiveSubscriptionInfo(subId) : null;
+        return sub != null ? createSnapshot(sub) : null;
+    }
+
+    /**
+     * @return The state of every active subscription, ordered by SIM slot.
+     */
+    public List<SubscriptionSnapshot> getSnapshots() {
+        SparseArray<SubscriptionSnapshot> snapshots = getSnapshotMap();
+        if (snapshots == null) {
+            snapshots = buildSnapshots();
+        }
+        return toSortedList(snapshots);
+    }
+
+    /**
+     * @return The snapshots the callbacks keep current, ordered by SIM slot, or null when not
+     * listening or before the subscriptions were first seen. Never queries anything, so it is
+     * safe to call on the main thread.
+     */
+    public List<SubscriptionSnapshot> getPublishedSnapshots() {
+        final SparseArray<SubscriptionSnapshot> snapshots = mSnapshots;
+        return snapshots != null ? toSortedList(snapshots) : null;
+    }
+
+    private static List<SubscriptionSnapshot> toSortedList(
+            SparseArray<SubscriptionSnapshot> snapshots) {
+        final ArrayList<SubscriptionSnapshot> list = new ArrayList<>(snapshots.size());
+        for (int i = 0; i < snapshots.size(); i++) {
+            list.add(snapshots.valueAt(i));
+        }
+        list.sort(Comparator.comparingInt(SubscriptionSnapshot::getSimSlotIndex));
+        return list;
+    }
+
+    public boolean isListening() {
+        return mListening;
+    }
+
+    private void startListening() {
+        if (mListening) {
+            return;
+        }
+        if (LOGV) {
+            Log.v(TAG, "startListening");
+        }
+        mListening = true;
+        if (mTelephony != null) {
+            mSubscriptionManager.addOnSubscriptionsChangedListener(mExecutor,
+                    mOnSubscriptionsChangedListener);
+            mTelephony.registerTelephonyCallback(mExecutor, mActiveDataSubscriptionTracker);
             updatePhoneStateTrackers();
         }
         // Register for DDS changes
         IntentFilter filter = new IntentFilter();
         filter.addAction(TelephonyIntents.ACTION_DEFAULT_DATA_SUBSCRIPTION_CHANGED);
         filter.addAction(TelephonyIntents.ACTION_SIM_STATE_CHANGED);
-        context.registerReceiver(mIntentReceiver, filter, null, null);
+        mContext.registerReceiver(mIntentReceiver, filter, null, mHandler);
     }
 
-    private void updatePhoneStateTrackers() {
-        int i = 0;
-        int[] subIds = mSubscriptionManager.getActiveSubscriptionIdList();
-        HashSet<Integer> subIdSet = new HashSet(Arrays.asList(subIds));
+    private void stopListening() {
+        if (!mListening) {
+            return;
+        }
         if (LOGV) {
-            Log.v(TAG, "Register PhoneStateListeners for " + subIdSet);
+            Log.v(TAG, "stopListening callbacks=" + getCallbackCount()
+                    + " deliveries=" + getDeliveryCount());
         }
-        for (int i2 = 0; i2 < mTrackers.size(); i2++) {
-            if (!subIdSet.contains(Integer.valueOf(mTrackers.keyAt(i2)))) {
-                mTelephony.listen(mTrackers.valueAt(i2), LISTEN_NONE);
-                mTrackers.removeAt(i2);
+        mListening = false;
+        if (mTelephony != null) {
+            mSubscriptionManager.removeOnSubscriptionsChangedListener(
+                    mOnSubscriptionsChangedListener);
+            mTelephony.unregisterTelephonyCallback(mActiveDataSubscriptionTracker);
+            for (int i = 0; i < mTrackers.size(); i++) {
+                mTrackers.valueAt(i).unregister();
+                mTrackerUnregisterCount++;
             }
+            mTrackers.clear();
+        }
+        mContext.unregisterReceiver(mIntentReceiver);
+        synchronized (mSnapshotLock) {
+            mSnapshots = null;
         }
-        int length = subIds.length;
-        while (i < length) {
-            int subId = subIds[i];
-            if (mTrackers.indexOfKey(subId) < 0) {
-                SubscriptionStateTracker tracker = new SubscriptionStateTracker(subId);
-                mTrackers.put(subId, tracker);
-                mTelephony.createForSubscriptionId(subId).listen(tracker, LISTEN_SERVICE_STATE
-                        | LISTEN_SIGNAL_STRENGTHS
-                        | LISTEN_DATA_CONNECTION_STATE);
+    }
+
+    /**
+     * Brings the trackers in line with the active subscriptions. Both id lists are walked in
+     * sorted order, so only subscriptions that appeared are registered and only the ones
+     * that went away are unregistered.
+     */
+    private synchronized void updatePhoneStateTrackers() {
+        if (!mListening) {
+            // A change queued before stopListening() must not register trackers again.
+            return;
+        }
+        final int[] subIds = mSubscriptionManager.getActiveSubscriptionIdList().clone();
+        Arrays.sort(subIds);
+        // SparseArray keys are kept in ascending order.
+        final int[] trackedIds = new int[mTrackers.size()];
+        for (int i = 0; i < trackedIds.length; i++) {
+            trackedIds[i] = mTrackers.keyAt(i);
+        }
+        if (LOGV) {
+            Log.v(TAG, "Update TelephonyCallbacks from " + Arrays.toString(trackedIds)
+                    + " to " + Arrays.toString(subIds));
+        }
+        int i = 0;
+        int j = 0;
+        while (i < subIds.length || j < trackedIds.length) {
+            if (i > 0 && i < subIds.length && subIds[i] == subIds[i - 1]) {
+                i++;
+            } else if (j == trackedIds.length
+                    || (i < subIds.length && subIds[i] < trackedIds[j])) {
+                addTracker(subIds[i++]);
+            } else if (i == subIds.length || subIds[i] > trackedIds[j]) {
+                removeTracker(trackedIds[j++]);
+            } else {
+                i++;
+                j++;
             }
-            i++;
         }
     }
 
+    private void addTracker(int subId) {
+        SubscriptionStateTracker tracker = new SubscriptionStateTracker(subId);
+        mTrackers.put(subId, tracker);
+        tracker.register();
+        mTrackerRegisterCount++;
+    }
+
+    private void removeTracker(int subId) {
+        mTrackers.get(subId).unregister();
+        mTrackers.remove(subId);
+        mTrackerUnregisterCount++;
+    }
+
+    /**
+     * @return The number of tracker registrations made so far. A subscription change that
+     * leaves the active subscriptions as they were registers nothing.
+     */
+    public synchronized int getTrackerRegisterCount() {
+        return mTrackerRegisterCount;
+    }
+
+    public synchronized int getTrackerUnregisterCount() {
+        return mTrackerUnregisterCount;
+    }
+
+    /**
+     * Adds a listener called on the main thread, with the frame.
+     */
     public void addListener(SubscriptionStateListener listener) {
-        mListeners.add(listener);
+        mDispatcher.addListener(listener, null);
+    }
+
+    public void addListener(SubscriptionStateListener listener, Executor executor) {
+        mDispatcher.addListener(listener, executor);
     }
 
     public void removeListener(SubscriptionStateListener listener) {
-        mListeners.remove(listener);
+        mDispatcher.removeListener(listener);
+    }
+
+    /**
+     * Queues a state change for the listeners. Only the latest change of each kind and
+     * subscription is delivered with the next frame.
+     */
+    private void dispatch(int subId, int eventType,
+            Consumer<SubscriptionStateListener> event) {
+        mDispatcher.post(((long) eventType << 32) | (subId & 0xffffffffL), event);
+    }
+
+    /**
+     * @return The snapshot of the given subscription while listening, or null if it is not
+     * active or the caller has to query the one value it needs itself.
+     */
+    private SubscriptionSnapshot peekSnapshot(int subId) {
+        final SparseArray<SubscriptionSnapshot> snapshots = getSnapshotMap();
+        return snapshots != null ? snapshots.get(subId) : null;
     }
 
     public SubscriptionInfo getActiveSubscriptionInfo(int subId) {
-        return mSubscriptionManager.getActiveSubscriptionInfo(subId);
+        final SparseArray<SubscriptionSnapshot> snapshots = getSnapshotMap();
+        if (snapshots == null) {
+            return mTelephony != null ? mSubscriptionManager.getActiveSubscriptionInfo(subId)
+                    : null;
+        }
+        SubscriptionSnapshot snapshot = snapshots.get(subId);
+        return snapshot != null ? snapshot.getSubscriptionInfo() : null;
     }
 
     public List<SubscriptionInfo> getActiveSubscriptionInfoList() {
-        return mSubscriptionManager.getActiveSubscriptionInfoList();
+        if (getSnapshotMap() == null) {
+            final List<SubscriptionInfo> subs = mTelephony != null
+                    ? mSubscriptionManager.getActiveSubscriptionInfoList() : null;
+            return subs != null ? subs : new ArrayList<>();
+        }
+        List<SubscriptionInfo> subs = new ArrayList<>();
+        for (SubscriptionSnapshot snapshot : getSnapshots()) {
+            subs.add(snapshot.getSubscriptionInfo());
+        }
+        return subs;
     }
 
     public String getSimOperatorName(int subId) {
-        return mTelephony.createForSubscriptionId(subId).getSimOperatorName();
+        SubscriptionSnapshot snapshot = peekSnapshot(subId);
+        return snapshot != null ? snapshot.getSimOperatorName()
+                : mTelephony.createForSubscriptionId(subId).getSimOperatorName();
     }
 
     public String getNetworkOperatorName(int subId) {
-        return mTelephony.createForSubscriptionId(subId).getNetworkOperatorName();
+        SubscriptionSnapshot snapshot = peekSnapshot(subId);
+        return snapshot != null ? snapshot.getNetworkOperatorName()
+                : mTelephony.createForSubscriptionId(subId).getNetworkOperatorName();
     }
 
     public ServiceState getServiceStateForSubscriber(int subId) {
         return mTelephony.getServiceStateForSubscriber(subId);
     }
 
+    /**
+     * Switches the default data subscription. Switches requested while one is on its way are
+     * merged into the last one, see {@link DataSubSwitch}.
+     */
     public void changeDataSub(int subId) {
         if (LOGV) {
             Log.v(TAG, "changeDataSub{" +
                     "subId='" + subId + '\'' +
-                    ", mChangingToDataSubId=" + mChangingToDataSubId +
                     '}');
         }
-        if (mChangingToDataSubId != subId) {
-            mSubscriptionManager.setDefaultDataSubId(subId);
-            for (SubscriptionStateListener subscriptionStateListener : mListeners) {
-                subscriptionStateListener
-                        .onDefaultDataSubscriptionChangeRequested(mChangingToDataSubId, subId);
-            }
-            mChangingToDataSubId = subId;
+        if (mDataSubSwitch != null) {
+            mDataSubSwitch.request(subId);
+        }
+    }
+
+    private void dataSubSwitchChanged(int state, int fromSubId, int toSubId) {
+        // Requests and outcomes are not state, every one of them is delivered.
+        if (state == DataSubSwitch.STATE_REQUESTED) {
+            mDispatcher.post(null, listener ->
+                    listener.onDefaultDataSubscriptionChangeRequested(fromSubId, toSubId));
         }
+        mDispatcher.post(null, listener -> listener.onDataSubSwitchStateChanged(state, toSubId));
+    }
+
+    /**
+     * @return Whether a default data subscription change was requested and has not ended yet.
+     */
+    public boolean isDataSubChanging() {
+        return mDataSubSwitch != null && mDataSubSwitch.isSwitching();
     }
 
     private void ddsHasChanged(int subId) {
-        if (subId > -1) {
-            for (SubscriptionStateListener subscriptionStateListener : mListeners) {
-                subscriptionStateListener.onDefaultDataSubscriptionChanged(subId);
-            }
+        if (mDataSubSwitch != null) {
+            mDataSubSwitch.onDefaultDataSubIdChanged(subId);
+        }
+        if (subId > -1 && subId != mDefaultDataSubId) {
+            mDefaultDataSubId = subId;
+            dispatch(SubscriptionManager.INVALID_SUBSCRIPTION_ID,
+                    EVENT_DEFAULT_DATA_SUBSCRIPTION,
+                    listener -> listener.onDefaultDataSubscriptionChanged(subId));
         }
     }
 
@@ -262,15 +746,39 @@ public class PhoneMonitor {
             Log.v(TAG,
                     "simStateChanged(" + subId + ", " + simState + ")");
         }
-        for (SubscriptionStateListener subscriptionStateListener : mListeners) {
-            subscriptionStateListener.onSimStateChanged(subId, simState);
+        if (mSimStates.indexOfKey(subId) >= 0 && mSimStates.get(subId) == simState) {
+            return;
         }
+        mSimStates.put(subId, simState);
+        dispatch(subId, EVENT_SIM_STATE, listener -> listener.onSimStateChanged(subId, simState));
     }
 
     public boolean simMissing() {
         if (mTelephony == null) {
             return false;
         }
+        if (getSnapshotMap() == null) {
+            return simMissingUncached();
+        }
+        for (SubscriptionSnapshot snapshot : getSnapshots()) {
+            int simState = snapshot.getSimState();
+            if (LOGV) {
+                Log.v(TAG, "getSimState(" + snapshot.getSubscriptionId() + ") == " + simState);
+            }
+            boolean isGsm = snapshot.getPhoneType() == PHONE_TYPE_GSM;
+            boolean isLte = snapshot.getLteOnCdmaMode() == LTE_ON_CDMA_TRUE;
+            if ((isGsm || isLte) && simState != SIM_STATE_ABSENT) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The queries of {@link #simMissing()} when not listening. The phone type is only asked
+     * for SIMs that are present.
+     */
+    private boolean simMissingUncached() {
         List<SubscriptionInfo> subs = mSubscriptionManager.getActiveSubscriptionInfoList();
         if (subs != null) {
             for (SubscriptionInfo sub : subs) {
@@ -279,9 +787,7 @@ public class PhoneMonitor {
                     Log.v(TAG, "getSimState(" + sub.getSubscriptionId() + ") == " + simState);
                 }
                 int subId = sub.getSubscriptionId();
-                boolean isGsm = isGSM(subId);
-                boolean isLte = isLte(subId);
-                if ((isGsm || isLte) && simState != 1) {
+                if (simState != SIM_STATE_ABSENT && (isGSM(subId) || isLte(subId))) {
                     return false;
                 }
             }
@@ -289,8 +795,14 @@ public class PhoneMonitor {
         return true;
     }
 
+    private int getActiveSubscriptionCount() {
+        final SparseArray<SubscriptionSnapshot> snapshots = getSnapshotMap();
+        return snapshots != null ? snapshots.size()
+                : mSubscriptionManager.getActiveSubscriptionInfoCount();
+    }
+
     public boolean singleSimInserted() {
-        return mSubscriptionManager.getActiveSubscriptionInfoCount() == 1;
+        return getActiveSubscriptionCount() == 1;
     }
 
     // We only care that each slot has a sim
@@ -302,7 +814,7 @@ public class PhoneMonitor {
                 return false;
             }
         }
-        return simSlotCount == mSubscriptionManager.getActiveSubscriptionInfoCount();
+        return simSlotCount == getActiveSubscriptionCount();
     }
 
     public boolean isMultiSimDevice() {
@@ -310,7 +822,10 @@ public class PhoneMonitor {
     }
 
     public boolean isGSM(int subId) {
-        return mTelephony.createForSubscriptionId(subId).getCurrentPhoneType() == PHONE_TYPE_GSM;
+        SubscriptionSnapshot snapshot = peekSnapshot(subId);
+        final int phoneType = snapshot != null ? snapshot.getPhoneType()
+                : mTelephony.createForSubscriptionId(subId).getCurrentPhoneType();
+        return phoneType == PHONE_TYPE_GSM;
     }
 
     public boolean isLte(int subId) {
@@ -318,11 +833,17 @@ public class PhoneMonitor {
     }
 
     public int getLteOnCdmaMode(int subId) {
-        if (mTelephony == null || mTelephony.createForSubscriptionId(subId).getLteOnCdmaMode(subId)
-                == LTE_ON_CDMA_UNKNOWN) {
+        SubscriptionSnapshot snapshot = mTelephony != null ? peekSnapshot(subId) : null;
+        if (snapshot != null) {
+            return snapshot.getLteOnCdmaMode();
+        }
+        final int mode = mTelephony != null
+                ? mTelephony.createForSubscriptionId(subId).getLteOnCdmaMode(subId)
+                : LTE_ON_CDMA_UNKNOWN;
+        if (mode == LTE_ON_CDMA_UNKNOWN) {
             return TelephonyProperties.lte_on_cdma_device().orElse(LTE_ON_CDMA_UNKNOWN);
         }
-        return mTelephony.createForSubscriptionId(subId).getLteOnCdmaMode(subId);
+        return mode;
     }
 
     private void logPhoneState(String prefix) {
@@ -368,12 +889,11 @@ public class PhoneMonitor {
     }
 
     private String getSubscriptionSimStateName(int subId) {
-        SubscriptionInfo subInfo = mSubscriptionManager.getActiveSubscriptionInfo(subId);
-        if (subInfo == null) {
+        SubscriptionSnapshot snapshot = mTelephony != null ? getSnapshot(subId) : null;
+        if (snapshot == null) {
             return "SIM_STATE_UNKNOWN";
         }
-        return mTelephony != null ?
-                getSimStateName(mTelephony.getSimState(subInfo.getSimSlotIndex())) : "";
+        return getSimStateName(snapshot.getSimState());
     }
 
     private String getDataStateName() {
@@ -499,6 +1019,22 @@ public class PhoneMonitor {
         void onSignalStrengthsChanged(int subId, SignalStrength signalStrength);
 
         void onSimStateChanged(int subId, int simState);
+
+        default void onActiveDataSubscriptionIdChanged(int subId) {
+        }
+
+        /**
+         * Called once, when the radio is first seen powered.
+         */
+        default void onRadioPowered() {
+        }
+
+        /**
+         * Called when a default data subscription switch is requested or ends, with one of the
+         * {@link DataSubSwitch} states.
+         */
+        default void onDataSubSwitchStateChanged(int state, int subId) {
+        }
     }
 
 }
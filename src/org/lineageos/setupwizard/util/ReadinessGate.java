@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.setupwizard.util;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+
+/**
+ * Something a screen waits for before it shows its content, such as the radio being powered.
+ *
+ * A gate opens once and stays open. Callbacks added to an open gate run right away, so a
+ * screen whose gate is already open when it resumes shows its content in the first frame
+ * instead of flashing a progress bar. Gates are combined with {@link #all}, {@link #any} and
+ * {@link #withTimeout}; a gate opened by a timeout reports {@link #isTimedOut()}.
+ *
+ * Gates are only used on the main thread.
+ */
+public final class ReadinessGate {
+
+    private final String mName;
+    private final long mCreateMillis = SystemClock.elapsedRealtime();
+    private final ArrayList<Runnable> mCallbacks = new ArrayList<>();
+    private Runnable mDetach;
+    private boolean mOpen;
+    private boolean mTimedOut;
+    private boolean mCancelled;
+    private long mOpenMillis;
+
+    ReadinessGate(String name) {
+        mName = name;
+    }
+
+    /**
+     * @return A gate that opens once every given gate has.
+     */
+    public static ReadinessGate all(String name, ReadinessGate... gates) {
+        return combine(name, gates, gates.length);
+    }
+
+    /**
+     * @return A gate that opens as soon as one of the given gates does.
+     */
+    public static ReadinessGate any(String name, ReadinessGate... gates) {
+        return combine(name, gates, Math.min(1, gates.length));
+    }
+
+    /**
+     * @return A gate that opens with the given one, or as timed out once the delay has passed.
+     */
+    public static ReadinessGate withTimeout(ReadinessGate gate, long timeoutMillis) {
+        final ReadinessGate timed = new ReadinessGate(gate.mName + "+timeout");
+        final Runnable onOpen = () -> timed.open(gate.mTimedOut);
+        gate.whenOpen(onOpen);
+        if (!timed.mOpen) {
+            final TaskScheduler.Task timeout = TaskScheduler.getInstance().runOnMainDelayed(
+                    "ReadinessGate." + gate.mName + ".timeout", () -> timed.open(true),
+                    Math.max(0, timeoutMillis));
+            timed.mDetach = () -> {
+                gate.removeCallback(onOpen);
+                timeout.cancel();
+            };
+        }
+        return timed;
+    }
+
+    private static ReadinessGate combine(String name, ReadinessGate[] gates, int needed) {
+        final ReadinessGate combined = new ReadinessGate(name);
+        if (needed == 0) {
+            combined.open(false);
+            return combined;
+        }
+        final int[] remaining = { needed };
+        final boolean[] timedOut = { false };
+        final ArrayList<ReadinessGate> pending = new ArrayList<>();
+        final Runnable onOpen = () -> {
+            pending.removeIf(gate -> {
+                if (!gate.mOpen) {
+                    return false;
+                }
+                timedOut[0] |= gate.mTimedOut;
+                remaining[0]--;
+                return true;
+            });
+            if (remaining[0] <= 0) {
+                combined.open(timedOut[0]);
+            }
+        };
+        for (ReadinessGate gate : gates) {
+            if (gate.mOpen) {
+                timedOut[0] |= gate.mTimedOut;
+                remaining[0]--;
+            } else {
+                pending.add(gate);
+                gate.mCallbacks.add(onOpen);
+            }
+        }
+        combined.mDetach = () -> {
+            for (ReadinessGate gate : pending) {
+                gate.removeCallback(onOpen);
+            }
+        };
+        if (remaining[0] <= 0) {
+            combined.open(timedOut[0]);
+        }
+        return combined;
+    }
+
+    void open() {
+        open(false);
+    }
+
+    private void open(boolean timedOut) {
+        if (mOpen || mCancelled) {
+            return;
+        }
+        mOpen = true;
+        mTimedOut = timedOut;
+        mOpenMillis = SystemClock.elapsedRealtime();
+        detach();
+        final ArrayList<Runnable> callbacks = new ArrayList<>(mCallbacks);
+        mCallbacks.clear();
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+    }
+
+    /**
+     * Runs the callback once the gate is open, right away if it already is.
+     */
+    public void whenOpen(Runnable callback) {
+        if (mOpen) {
+            callback.run();
+        } else if (!mCancelled) {
+            mCallbacks.add(callback);
+        }
+    }
+
+    public void removeCallback(Runnable callback) {
+        mCallbacks.remove(callback);
+    }
+
+    /**
+     * Stops waiting: the gate never opens and lets go of the gates it was made of.
+     */
+    public void cancel() {
+        mCancelled = true;
+        mCallbacks.clear();
+        detach();
+    }
+
+    private void detach() {
+        if (mDetach != null) {
+            mDetach.run();
+            mDetach = null;
+        }
+    }
+
+    public boolean isOpen() {
+        return mOpen;
+    }
+
+    /**
+     * @return Whether the gate gave up waiting rather than seeing what it waited for.
+     */
+    public boolean isTimedOut() {
+        return mTimedOut;
+    }
+
+    @Override
+    public String toString() {
+        return mName + (mOpen ? (mTimedOut ? " timed out" : " open") + " after "
+                + (mOpenMillis - mCreateMillis) + "ms" : mCancelled ? " cancelled" : " waiting");
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.setupwizard.util;
+
+import static org.lineageos.setupwizard.SetupWizardApp.LOGV;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.telephony.ServiceState;
+import android.telephony.SignalStrength;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * The gates of the radio, SIM and data bring-up, shared by every screen that waits on them.
+ *
+ * The gates follow the {@link PhoneMonitor} snapshots: they are brought up to date with every
+ * change the monitor delivers and whenever a screen asks for one. The radio gate stays open
+ * once the radio was seen powered, and opens anyway once the time the radio usually takes on
+ * this device, as learned by {@link ReadinessHistory}, has passed since the process start.
+ * The other gates describe the current state: once their condition no longer holds they are
+ * replaced by a new gate that waits for it again, so a screen gets the gate to wait on at the
+ * time it starts waiting.
+ *
+ * Only used on the main thread, so the gates only read the snapshots PhoneMonitor already
+ * published. While it is not listening, or before it first saw the subscriptions, they are
+ * left as they are until the next change.
+ */
+public final class ReadinessGates {
+
+    private static final String TAG = ReadinessGates.class.getSimpleName();
+
+    private static ReadinessGates sInstance;
+
+    private final PhoneMonitor mPhoneMonitor;
+    private final ReadinessHistory mHistory;
+    private final ReadinessGate mRadioPowered = new ReadinessGate("radioPowered");
+    private final ReadinessGate mRadioReady;
+    private ReadinessGate mSimLoaded = new ReadinessGate("simLoaded");
+    private ReadinessGate mDataConnected = new ReadinessGate("dataConnected");
+    private ReadinessGate mDataSubSwitched = new ReadinessGate("dataSubSwitched");
+    private int mUpdateCount;
+
+    private final PhoneMonitor.SubscriptionStateListener mSubscriptionStateListener =
+            new PhoneMonitor.SubscriptionStateListener() {
+                @Override
+                public void onServiceStateChanged(int subId, ServiceState serviceState) {
+                    update();
+                }
+
+                @Override
+                public void onDataConnectionStateChanged(int subId, int state,
+                        int networkType) {
+                    update();
+                }
+
+                @Override
+                public void onDefaultDataSubscriptionChanged(int subId) {
+                    update();
+                }
+
+                @Override
+                public void onDefaultDataSubscriptionChangeRequested(int currentSubId,
+                        int newSubId) {
+                    update();
+                }
+
+                @Override
+                public void onSignalStrengthsChanged(int subId, SignalStrength signalStrength) {
+                }
+
+                @Override
+                public void onSimStateChanged(int subId, int simState) {
+                    update();
+                }
+
+                @Override
+                public void onActiveDataSubscriptionIdChanged(int subId) {
+                    update();
+                }
+
+                @Override
+                public void onDataSubSwitchStateChanged(int state, int subId) {
+                    update();
+                }
+
+                @Override
+                public void onRadioPowered() {
+                    update();
+                }
+            };
+
+    public static ReadinessGates getInstance() {
+        if (sInstance == null) {
+            sInstance = new ReadinessGates(PhoneMonitor.getInstance(),
+                    ReadinessHistory.getInstance());
+        }
+        return sInstance;
+    }
+
+    private ReadinessGates(PhoneMonitor phoneMonitor, ReadinessHistory history) {
+        mPhoneMonitor = phoneMonitor;
+        mHistory = history;
+        // PhoneMonitor records how long the radio took, it watches it from the process start.
+        mRadioReady = ReadinessGate.withTimeout(mRadioPowered,
+                mHistory.getTimeoutMillis(ReadinessHistory.RADIO_READY) - getSinceStartMillis());
+        mPhoneMonitor.addListener(mSubscriptionStateListener);
+    }
+
+    private static long getSinceStartMillis() {
+        return SystemClock.uptimeMillis() - Process.getStartUptimeMillis();
+    }
+
+    /**
+     * @return The gate of the radio being powered on, or of having waited long enough for it.
+     */
+    public ReadinessGate radioPowered() {
+        update();
+        return mRadioReady;
+    }
+
+    /**
+     * @return The gate of every inserted SIM being loaded.
+     */
+    public ReadinessGate simLoaded() {
+        update();
+        return mSimLoaded;
+    }
+
+    /**
+     * @return The gate of a data connection being up on one of the subscriptions.
+     */
+    public ReadinessGate dataConnected() {
+        update();
+        return mDataConnected;
+    }
+
+    /**
+     * @return A gate for the data connection that was just asked for, which gives up once the
+     * time data connections usually take on this device has passed.
+     */
+    public ReadinessGate awaitDataConnection() {
+        final ReadinessGate connected = dataConnected();
+        if (!connected.isOpen()) {
+            final long start = SystemClock.elapsedRealtime();
+            connected.whenOpen(() -> mHistory.add(ReadinessHistory.DATA_CONNECTED,
+                    SystemClock.elapsedRealtime() - start));
+        }
+        return ReadinessGate.withTimeout(connected,
+                mHistory.getTimeoutMillis(ReadinessHistory.DATA_CONNECTED));
+    }
+
+    /**
+     * @return The gate of the default data subscription switches on their way having ended,
+     * whether they were confirmed or timed out.
+     */
+    public ReadinessGate dataSubSwitched() {
+        update();
+        return mDataSubSwitched;
+    }
+
+    private void update() {
+        if (!mPhoneMonitor.isListening()) {
+            return;
+        }
+        final List<SubscriptionSnapshot> snapshots = mPhoneMonitor.getPublishedSnapshots();
+        if (snapshots == null) {
+            return;
+        }
+        mUpdateCount++;
+        boolean radioPowered = mPhoneMonitor.isRadioPowered();
+        boolean simLoaded = true;
+        boolean dataConnected = false;
+        for (SubscriptionSnapshot snapshot : snapshots) {
+            final ServiceState serviceState = snapshot.getServiceState();
+            radioPowered |= serviceState != null
+                    && serviceState.getState() != ServiceState.STATE_POWER_OFF;
+            simLoaded &= snapshot.getSimState() == TelephonyManager.SIM_STATE_LOADED;
+            dataConnected |= snapshot.getDataState() == TelephonyManager.DATA_CONNECTED;
+        }
+        if (radioPowered) {
+            mRadioPowered.open();
+        }
+        mSimLoaded = follow(mSimLoaded, "simLoaded", simLoaded);
+        mDataConnected = follow(mDataConnected, "dataConnected", dataConnected);
+        mDataSubSwitched = follow(mDataSubSwitched, "dataSubSwitched",
+                !mPhoneMonitor.isDataSubChanging());
+    }
+
+    /**
+     * @return The gate to wait on for a condition, opening the current one if it holds.
+     */
+    private static ReadinessGate follow(ReadinessGate gate, String name, boolean ready) {
+        if (ready) {
+            gate.open();
+            return gate;
+        }
+        if (gate.isOpen()) {
+            if (LOGV) {
+                Log.v(TAG, name + " no longer ready");
+            }
+            return new ReadinessGate(name);
+        }
+        return gate;
+    }
+
+    public static void dump(String prefix, PrintWriter writer) {
+        final ReadinessGates gates = sInstance;
+        if (gates == null) {
+            return;
+        }
+        writer.println(prefix + "ReadinessGates updates=" + gates.mUpdateCount + " "
+                + gates.mRadioReady + ", " + gates.mSimLoaded + ", " + gates.mDataConnected
+                + ", " + gates.mDataSubSwitched);
+    }
+}
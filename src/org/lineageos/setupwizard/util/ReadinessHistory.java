@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.setupwizard.util;
+
+import static org.lineageos.setupwizard.SetupWizardApp.LOGV;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import org.lineageos.setupwizard.SetupWizardApp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * How long the radio, data connections and data subscription switches took on this device,
+ * used to decide how long to wait for them.
+ *
+ * Every latency seen is added to a small histogram per metric, which is kept in the no-backup
+ * files dir behind the build fingerprint, so that a new device or build starts over. Once a
+ * metric has enough samples its timeout is its 99th percentile plus a margin, clamped to sane
+ * bounds; until then the old fixed timeout is used. Counts are halved when they grow large so
+ * that recent bring-ups weigh more than old ones.
+ */
+public final class ReadinessHistory {
+
+    private static final String TAG = ReadinessHistory.class.getSimpleName();
+
+    private static final String FILE_NAME = "readiness_history";
+    private static final int VERSION = 1;
+
+    /**
+     * From the process start to the radio being powered.
+     */
+    public static final int RADIO_READY = 0;
+
+    /**
+     * From mobile data being turned on to a data connection being up.
+     */
+    public static final int DATA_CONNECTED = 1;
+
+    /**
+     * From a default data subscription change being requested to it being confirmed.
+     */
+    public static final int DATA_SUB_SWITCH = 2;
+
+    private static final String[] NAMES = { "radioReady", "dataConnected", "dataSubSwitch" };
+    private static final long[] DEFAULT_TIMEOUTS_MS =
+            { SetupWizardApp.RADIO_READY_TIMEOUT, 20000, 15000 };
+    private static final long[] MIN_TIMEOUTS_MS = { 3000, 5000, 3000 };
+    private static final long[] MAX_TIMEOUTS_MS = { 30000, 60000, 30000 };
+
+    // Upper bounds of the buckets, the last bucket holds everything above.
+    private static final long[] BUCKET_BOUNDS_MS = { 250, 500, 1000, 1500, 2000, 3000, 4000,
+            5000, 6000, 8000, 10000, 12500, 15000, 20000, 25000, 30000, 45000, 60000 };
+
+    private static final int MIN_SAMPLES = 5;
+    private static final int MAX_SAMPLES = 256;
+    private static final int RECENT_SAMPLES = 16;
+    private static final long MIN_MARGIN_MS = 1000;
+
+    private static ReadinessHistory sInstance;
+
+    private final AtomicFile mFile;
+    private final int[][] mBuckets = new int[NAMES.length][BUCKET_BOUNDS_MS.length + 1];
+    private final long[][] mRecent = new long[NAMES.length][RECENT_SAMPLES];
+    private final int[] mRecentCount = new int[NAMES.length];
+
+    public static void initInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ReadinessHistory(context.getApplicationContext());
+        }
+    }
+
+    public static ReadinessHistory getInstance() {
+        SetupWizardApp.awaitStartupTask(SetupWizardApp.TASK_READINESS_HISTORY);
+        return sInstance;
+    }
+
+    private ReadinessHistory(Context context) {
+        mFile = new AtomicFile(new File(context.getNoBackupFilesDir(), FILE_NAME));
+        load();
+    }
+
+    /**
+     * Records a latency seen for the given metric.
+     */
+    public void add(int metric, long millis) {
+        final byte[] data;
+        synchronized (this) {
+            final int[] buckets = mBuckets[metric];
+            buckets[getBucket(millis)]++;
+            if (getSampleCount(metric) > MAX_SAMPLES) {
+                for (int i = 0; i < buckets.length; i++) {
+                    buckets[i] /= 2;
+                }
+            }
+            mRecent[metric][mRecentCount[metric]++ % RECENT_SAMPLES] = millis;
+            data = write();
+        }
+        if (LOGV) {
+            Log.v(TAG, NAMES[metric] + " took " + millis + "ms, timeout now "
+                    + getTimeoutMillis(metric) + "ms");
+        }
+        TaskScheduler.getInstance().runOnLane(TAG, "ReadinessHistory.save", () -> save(data));
+    }
+
+    /**
+     * @return How long to wait for the given metric before giving up.
+     */
+    public synchronized long getTimeoutMillis(int metric) {
+        final int count = getSampleCount(metric);
+        if (count < MIN_SAMPLES) {
+            return DEFAULT_TIMEOUTS_MS[metric];
+        }
+        final int[] buckets = mBuckets[metric];
+        final int rank = (int) Math.ceil(count * 0.99);
+        long p99 = MAX_TIMEOUTS_MS[metric];
+        int seen = 0;
+        for (int i = 0; i < BUCKET_BOUNDS_MS.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                p99 = BUCKET_BOUNDS_MS[i];
+                break;
+            }
+        }
+        final long timeout = p99 + Math.max(MIN_MARGIN_MS, p99 / 2);
+        return Math.max(MIN_TIMEOUTS_MS[metric], Math.min(MAX_TIMEOUTS_MS[metric], timeout));
+    }
+
+    private int getSampleCount(int metric) {
+        int count = 0;
+        for (int bucket : mBuckets[metric]) {
+            count += bucket;
+        }
+        return count;
+    }
+
+    private static int getBucket(long millis) {
+        for (int i = 0; i < BUCKET_BOUNDS_MS.length; i++) {
+            if (millis <= BUCKET_BOUNDS_MS[i]) {
+                return i;
+            }
+        }
+        return BUCKET_BOUNDS_MS.length;
+    }
+
+    private synchronized void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(mFile.readFully()))) {
+            if (in.readInt() != VERSION || !Build.FINGERPRINT.equals(in.readUTF())
+                    || in.readInt() != NAMES.length || in.readInt() != BUCKET_BOUNDS_MS.length) {
+                if (LOGV) {
+                    Log.v(TAG, "Discarding history of another build");
+                }
+                mFile.delete();
+                return;
+            }
+            for (int metric = 0; metric < NAMES.length; metric++) {
+                for (int i = 0; i < mBuckets[metric].length; i++) {
+                    mBuckets[metric][i] = in.readInt();
+                }
+                mRecentCount[metric] = in.readInt();
+                for (int i = 0; i < RECENT_SAMPLES; i++) {
+                    mRecent[metric][i] = in.readLong();
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read " + FILE_NAME, e);
+            for (int metric = 0; metric < NAMES.length; metric++) {
+                mBuckets[metric] = new int[BUCKET_BOUNDS_MS.length + 1];
+                mRecentCount[metric] = 0;
+            }
+            mFile.delete();
+        }
+    }
+
+    private byte[] write() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(VERSION);
+            out.writeUTF(Build.FINGERPRINT);
+            out.writeInt(NAMES.length);
+            out.writeInt(BUCKET_BOUNDS_MS.length);
+            for (int metric = 0; metric < NAMES.length; metric++) {
+                for (int bucket : mBuckets[metric]) {
+                    out.writeInt(bucket);
+                }
+                out.writeInt(mRecentCount[metric]);
+                for (long sample : mRecent[metric]) {
+                    out.writeLong(sample);
+                }
+            }
+        } catch (IOException e) {
+            // Not happening with a ByteArrayOutputStream.
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void save(byte[] data) {
+        FileOutputStream out = null;
+        try {
+            out = mFile.startWrite();
+            out.write(data);
+            mFile.finishWrite(out);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write " + FILE_NAME, e);
+            if (out != null) {
+                mFile.failWrite(out);
+            }
+        }
+    }
+
+    public static void dump(String prefix, PrintWriter writer) {
+        final ReadinessHistory history = sInstance;
+        if (history == null) {
+            return;
+        }
+        synchronized (history) {
+            for (int metric = 0; metric < NAMES.length; metric++) {
+                final StringBuilder sb = new StringBuilder(prefix).append("ReadinessHistory ")
+                        .append(NAMES[metric])
+                        .append(" timeoutMs=").append(history.getTimeoutMillis(metric))
+                        .append(" samples=").append(history.getSampleCount(metric))
+                        .append(" buckets={");
+                final int[] buckets = history.mBuckets[metric];
+                for (int i = 0; i < buckets.length; i++) {
+                    if (buckets[i] > 0) {
+                        sb.append(i < BUCKET_BOUNDS_MS.length
+                                ? "<=" + BUCKET_BOUNDS_MS[i] : ">" + BUCKET_BOUNDS_MS[i - 1])
+                                .append(':').append(buckets[i]).append(' ');
+                    }
+                }
+                sb.append("} recentMs=[");
+                final int count = history.mRecentCount[metric];
+                for (int i = Math.max(0, count - RECENT_SAMPLES); i < count; i++) {
+                    sb.append(history.mRecent[metric][i % RECENT_SAMPLES])
+                            .append(i < count - 1 ? "," : "");
+                }
+                writer.println(sb.append(']'));
+            }
+        }
+    }
+}
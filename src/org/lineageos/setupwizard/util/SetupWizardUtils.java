@@ -21,7 +21,6 @@ import static android.content.Context.MODE_PRIVATE;
 import static android.content.pm.PackageManager.COMPONENT_ENABLED_STATE_DEFAULT;
 import static android.content.pm.PackageManager.COMPONENT_ENABLED_STATE_DISABLED;
 import static android.content.pm.PackageManager.COMPONENT_ENABLED_STATE_ENABLED;
-import static android.content.pm.PackageManager.DONT_KILL_APP;
 import static android.content.pm.PackageManager.GET_ACTIVITIES;
 import static android.content.pm.PackageManager.GET_RECEIVERS;
 import static android.content.pm.PackageManager.GET_SERVICES;
@@ -40,14 +39,10 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ServiceInfo;
 import android.content.res.Resources;
-import android.hardware.face.FaceManager;
-import android.hardware.fingerprint.FingerprintManager;
-import android.net.ConnectivityManager;
 import android.os.Binder;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.provider.Settings;
-import android.telephony.ServiceState;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.util.Log;
@@ -86,42 +81,34 @@ public class SetupWizardUtils {
         }
     }
 
-    public static void setMobileDataEnabled(Context context, boolean enabled) {
+    /**
+     * @return Whether the setting was written. Settings.Global.putInt reports a failed write
+     * through its result rather than by throwing.
+     */
+    public static boolean setMobileDataEnabled(Context context, boolean enabled) {
         TelephonyManager tm = context.getSystemService(TelephonyManager.class);
+        final boolean written;
         if (tm.isMultiSimEnabled()) {
             var sm = SubscriptionManager.from(context);
             int subId = SubscriptionManager.getDefaultDataSubscriptionId();
             int phoneId = sm.getPhoneId(subId);
-            android.provider.Settings.Global.putInt(context.getContentResolver(),
+            written = android.provider.Settings.Global.putInt(context.getContentResolver(),
                     android.provider.Settings.Global.MOBILE_DATA + phoneId, enabled ? 1 : 0);
             tm.createForSubscriptionId(subId).setDataEnabled(enabled);
         } else {
-            android.provider.Settings.Global.putInt(context.getContentResolver(),
+            written = android.provider.Settings.Global.putInt(context.getContentResolver(),
                     android.provider.Settings.Global.MOBILE_DATA, enabled ? 1 : 0);
             tm.setDataEnabled(enabled);
         }
+        return written;
     }
 
     public static boolean hasWifi(Context context) {
-        PackageManager packageManager = context.getPackageManager();
-        return packageManager.hasSystemFeature(PackageManager.FEATURE_WIFI);
+        return DeviceCapabilities.get(context).hasWifi();
     }
 
     public static boolean hasTelephony(Context context) {
-        PackageManager packageManager = context.getPackageManager();
-        return packageManager.hasSystemFeature(PackageManager.FEATURE_TELEPHONY);
-    }
-
-    public static boolean isRadioReady(Context context, ServiceState state) {
-        final SetupWizardApp setupWizardApp = (SetupWizardApp) context.getApplicationContext();
-        if (setupWizardApp.isRadioReady()) {
-            return true;
-        } else {
-            final boolean ready = state != null
-                    && state.getState() != ServiceState.STATE_POWER_OFF;
-            setupWizardApp.setRadioReady(ready);
-            return ready;
-        }
+        return DeviceCapabilities.get(context).hasTelephony();
     }
 
     public static boolean isOwner() {
@@ -191,45 +178,31 @@ public class SetupWizardUtils {
         disableComponent(context, WizardManager.class);
         disableHome(context);
         disableComponentSets(context, GET_RECEIVERS | GET_SERVICES);
+        // We may be torn down right after this, don't leave anything queued.
+        final ComponentStateEngine engine = ComponentStateEngine.getInstance(context);
+        engine.flush();
+        engine.logStats();
     }
 
     public static boolean isEthernetConnected(Context context) {
-        ConnectivityManager cm = (ConnectivityManager) context.
-                getSystemService(Context.CONNECTIVITY_SERVICE);
-
-        return (cm.getActiveNetworkInfo() != null &&
-                cm.getActiveNetworkInfo().getType() == ConnectivityManager.TYPE_ETHERNET);
+        // Two binder calls unless the NetworkMonitor is acquired, keep it off the main thread.
+        return NetworkMonitor.getInstance().isEthernetConnected();
     }
 
     public static boolean hasLeanback(Context context) {
-        PackageManager packageManager = context.getPackageManager();
-        return packageManager.hasSystemFeature(PackageManager.FEATURE_LEANBACK);
+        return DeviceCapabilities.get(context).hasLeanback();
     }
 
     public static boolean hasBiometric(Context context) {
-        return hasFingerprint(context) || hasFace(context);
+        return DeviceCapabilities.get(context).hasBiometric();
     }
 
     public static boolean hasFingerprint(Context context) {
-        PackageManager packageManager = context.getPackageManager();
-        if (packageManager.hasSystemFeature(PackageManager.FEATURE_FINGERPRINT)) {
-            FingerprintManager fingerprintManager = (FingerprintManager)
-                    context.getSystemService(Context.FINGERPRINT_SERVICE);
-            return fingerprintManager.isHardwareDetected();
-        } else {
-            return false;
-        }
+        return DeviceCapabilities.get(context).hasFingerprint();
     }
 
     public static boolean hasFace(Context context) {
-        PackageManager packageManager = context.getPackageManager();
-        if (packageManager.hasSystemFeature(PackageManager.FEATURE_FACE)) {
-            FaceManager faceManager = (FaceManager)
-                    context.getSystemService(Context.FACE_SERVICE);
-            return faceManager.isHardwareDetected();
-        } else {
-            return false;
-        }
+        return DeviceCapabilities.get(context).hasFace();
     }
 
     public static boolean simMissing() {
@@ -261,6 +234,7 @@ public class SetupWizardUtils {
         if (!isMultiSimDevice() || singleSimInserted()) {
             disableComponent(context, ChooseDataSimActivity.class);
         }
+        // Binder calls: runs as a startup task in the background, before any screen listens.
         if (!hasWifi(context) || isEthernetConnected(context)) {
             disableComponent(context, WifiSetupActivity.class);
         }
@@ -313,8 +287,8 @@ public class SetupWizardUtils {
 
     public static void setComponentEnabledState(Context context, ComponentName componentName,
             int enabledState) {
-        context.getPackageManager().setComponentEnabledSetting(componentName,
-                enabledState, DONT_KILL_APP);
+        ComponentStateEngine.getInstance(context).setComponentEnabledState(componentName,
+                enabledState);
     }
 
     public static void setComponentListEnabledState(Context context,
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.setupwizard.util;
+
+import static org.lineageos.setupwizard.SetupWizardApp.LOGV;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the process startup work as a graph of named tasks.
+ *
+ * Each task starts on a background pool as soon as the tasks it depends on have finished, so
+ * independent tasks run in parallel. Code that needs the result of a task calls
+ * {@link #await(String)} right before using it, which keeps the main thread free until the
+ * work is actually needed.
+ */
+public class StartupInitializer {
+
+    private static final String TAG = StartupInitializer.class.getSimpleName();
+
+    private static final int MAX_THREADS = 4;
+
+    private final class Task implements Runnable {
+        final String mName;
+        final Runnable mBody;
+        final String[] mDependencies;
+        final List<Task> mDependents = new ArrayList<>();
+        final CountDownLatch mDone = new CountDownLatch(1);
+        AtomicInteger mPendingDependencies;
+        long mStartMillis;
+        long mEndMillis;
+
+        Task(String name, Runnable body, String[] dependencies) {
+            mName = name;
+            mBody = body;
+            mDependencies = dependencies;
+        }
+
+        @Override
+        public void run() {
+            mStartMillis = SystemClock.elapsedRealtime();
+            try {
+                mBody.run();
+            } finally {
+                mEndMillis = SystemClock.elapsedRealtime();
+                mDone.countDown();
+                if (LOGV) {
+                    Log.v(TAG, mName + " took " + (mEndMillis - mStartMillis) + "ms");
+                }
+            }
+            for (Task dependent : mDependents) {
+                if (dependent.mPendingDependencies.decrementAndGet() == 0) {
+                    mExecutor.execute(dependent);
+                }
+            }
+            if (mRemaining.decrementAndGet() == 0) {
+                mExecutor.shutdown();
+                Log.i(TAG, "Startup finished, critical path " + getCriticalPath());
+            }
+        }
+    }
+
+    private final LinkedHashMap<String, Task> mTasks = new LinkedHashMap<>();
+    private final AtomicInteger mRemaining = new AtomicInteger();
+    private ExecutorService mExecutor;
+    private long mStartMillis;
+
+    /**
+     * Declares a task. Dependencies must have been added before the task that needs them.
+     */
+    public StartupInitializer addTask(String name, Runnable body, String... dependencies) {
+        if (mExecutor != null) {
+            throw new IllegalStateException("Tasks must be added before start()");
+        }
+        Task task = new Task(name, body, dependencies);
+        task.mPendingDependencies = new AtomicInteger(dependencies.length);
+        for (String dependency : dependencies) {
+            Task parent = mTasks.get(dependency);
+            if (parent == null) {
+                throw new IllegalArgumentException(name + " depends on unknown task "
+                        + dependency);
+            }
+            parent.mDependents.add(task);
+        }
+        mTasks.put(name, task);
+        return this;
+    }
+
+    public void start() {
+        mStartMillis = SystemClock.elapsedRealtime();
+        mRemaining.set(mTasks.size());
+        mExecutor = Executors.newFixedThreadPool(Math.min(MAX_THREADS,
+                Math.max(1, Runtime.getRuntime().availableProcessors())));
+        for (Task task : mTasks.values()) {
+            if (task.mDependencies.length == 0) {
+                mExecutor.execute(task);
+            }
+        }
+    }
+
+    /**
+     * Blocks until the given task has finished.
+     */
+    public void await(String name) {
+        Task task = mTasks.get(name);
+        if (task == null) {
+            throw new IllegalArgumentException("Unknown task " + name);
+        }
+        if (task.mDone.getCount() == 0) {
+            return;
+        }
+        final long waitStart = SystemClock.elapsedRealtime();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                task.mDone.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (LOGV) {
+            Log.v(TAG, "waited " + (SystemClock.elapsedRealtime() - waitStart) + "ms for "
+                    + name + " on " + Thread.currentThread().getName());
+        }
+    }
+
+    /**
+     * @return The chain of tasks that ended last, each one waiting on the dependency that
+     * finished last.
+     */
+    public String getCriticalPath() {
+        Task last = null;
+        for (Task task : mTasks.values()) {
+            if (task.mDone.getCount() == 0
+                    && (last == null || task.mEndMillis > last.mEndMillis)) {
+                last = task;
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        while (last != null) {
+            sb.insert(0, last.mName + "(" + (last.mEndMillis - last.mStartMillis) + "ms)"
+                    + (sb.length() > 0 ? " -> " : ""));
+            Task next = null;
+            for (String dependency : last.mDependencies) {
+                Task parent = mTasks.get(dependency);
+                if (next == null || parent.mEndMillis > next.mEndMillis) {
+                    next = parent;
+                }
+            }
+            last = next;
+        }
+        return sb.toString();
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "StartupInitializer criticalPath=" + getCriticalPath());
+        for (Task task : mTasks.values()) {
+            if (task.mDone.getCount() == 0) {
+                writer.println(prefix + "  " + task.mName
+                        + " start=+" + (task.mStartMillis - mStartMillis) + "ms"
+                        + " duration=" + (task.mEndMillis - task.mStartMillis) + "ms");
+            } else {
+                writer.println(prefix + "  " + task.mName + " pending");
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.setupwizard.util;
+
+import static org.lineageos.setupwizard.SetupWizardApp.LOGV;
+
+import android.app.Activity;
+import android.content.Context;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+
+/**
+ * Measures the cold start phases of the wizard, from process start to the first frame of the
+ * first screen.
+ *
+ * Every phase is emitted as an async trace section and recorded with its wall and process CPU
+ * time. Once the first frame is drawn a one line per phase report is written to
+ * files/startup_report.txt, so it can be pulled from many devices and compared between builds:
+ *
+ * <pre>
+ *   fingerprint=... sdk=... processStartMs=...
+ *   &lt;phase&gt; start=&lt;ms since process start&gt; wall=&lt;ms&gt; cpu=&lt;ms&gt;
+ * </pre>
+ *
+ * Only the first run of each phase in a process is recorded.
+ */
+public final class StartupProfiler {
+
+    private static final String TAG = StartupProfiler.class.getSimpleName();
+
+    public static final String PHASE_APP_CREATE = "app_create";
+    public static final String PHASE_SETUP_ACTIVITY = "setup_activity";
+    public static final String PHASE_WIZARD_LOAD = "wizard_load";
+    public static final String PHASE_FIRST_SCREEN = "first_screen";
+    public static final String PHASE_FIRST_FRAME = "first_frame";
+
+    private static final String REPORT_FILE = "startup_report.txt";
+
+    private static final class Phase {
+        final long mStartMillis;
+        final long mStartCpuMillis;
+        long mEndMillis = -1;
+        long mEndCpuMillis;
+
+        Phase(long startMillis, long startCpuMillis) {
+            mStartMillis = startMillis;
+            mStartCpuMillis = startCpuMillis;
+        }
+    }
+
+    private static final LinkedHashMap<String, Phase> sPhases = new LinkedHashMap<>();
+    private static boolean sReportWritten;
+
+    private StartupProfiler() {
+    }
+
+    public static void begin(String phase) {
+        synchronized (sPhases) {
+            if (sReportWritten || sPhases.containsKey(phase)) {
+                return;
+            }
+            sPhases.put(phase, new Phase(SystemClock.elapsedRealtime(),
+                    Process.getElapsedCpuTime()));
+        }
+        Trace.beginAsyncSection(getSectionName(phase), 0);
+    }
+
+    public static void end(String phase) {
+        synchronized (sPhases) {
+            Phase p = sPhases.get(phase);
+            if (p == null || p.mEndMillis >= 0) {
+                return;
+            }
+            p.mEndMillis = SystemClock.elapsedRealtime();
+            p.mEndCpuMillis = Process.getElapsedCpuTime();
+        }
+        Trace.endAsyncSection(getSectionName(phase), 0);
+    }
+
+    /**
+     * Called when a wizard screen resumes. The first one ends the cold start once its first
+     * frame has been drawn.
+     */
+    public static void onScreenResumed(Activity activity) {
+        synchronized (sPhases) {
+            if (sReportWritten || !sPhases.containsKey(PHASE_FIRST_SCREEN)
+                    || sPhases.get(PHASE_FIRST_SCREEN).mEndMillis >= 0) {
+                return;
+            }
+        }
+        end(PHASE_FIRST_SCREEN);
+        begin(PHASE_FIRST_FRAME);
+
+        final Context context = activity.getApplicationContext();
+        final View decorView = activity.getWindow().getDecorView();
+        decorView.getViewTreeObserver().addOnDrawListener(new ViewTreeObserver.OnDrawListener() {
+            private boolean mDrawn;
+
+            @Override
+            public void onDraw() {
+                if (mDrawn) {
+                    return;
+                }
+                mDrawn = true;
+                end(PHASE_FIRST_FRAME);
+                // Listeners can't be removed from within onDraw().
+                TaskScheduler.getInstance().runOnMain("StartupProfiler.removeOnDrawListener",
+                        () -> decorView.getViewTreeObserver().removeOnDrawListener(this));
+                writeReport(context);
+            }
+        });
+    }
+
+    private static String getSectionName(String phase) {
+        return "SetupWizard:" + phase;
+    }
+
+    private static String getReport() {
+        final long processStart = Process.getStartElapsedRealtime();
+        StringBuilder sb = new StringBuilder();
+        sb.append("fingerprint=").append(Build.FINGERPRINT)
+                .append(" sdk=").append(Build.VERSION.SDK_INT)
+                .append(" processStartMs=").append(processStart).append('\n');
+        synchronized (sPhases) {
+            for (String name : sPhases.keySet()) {
+                Phase p = sPhases.get(name);
+                sb.append(name).append(" start=").append(p.mStartMillis - processStart);
+                if (p.mEndMillis >= 0) {
+                    sb.append(" wall=").append(p.mEndMillis - p.mStartMillis)
+                            .append(" cpu=").append(p.mEndCpuMillis - p.mStartCpuMillis);
+                } else {
+                    sb.append(" unfinished");
+                }
+                sb.append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void writeReport(Context context) {
+        synchronized (sPhases) {
+            if (sReportWritten) {
+                return;
+            }
+            sReportWritten = true;
+        }
+        final String report = getReport();
+        if (LOGV) {
+            Log.v(TAG, "Startup report:\n" + report);
+        }
+        TaskScheduler.getInstance().runInBackground("StartupProfiler.writeReport", () -> {
+            AtomicFile file = new AtomicFile(new File(context.getFilesDir(), REPORT_FILE));
+            FileOutputStream out = null;
+            try {
+                out = file.startWrite();
+                out.write(report.getBytes(StandardCharsets.UTF_8));
+                file.finishWrite(out);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to write " + REPORT_FILE, e);
+                if (out != null) {
+                    file.failWrite(out);
+                }
+            }
+        });
+    }
+
+    public static void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "StartupProfiler:");
+        for (String line : getReport().split("\n")) {
+            writer.println(prefix + "  " + line);
+        }
+    }
+}
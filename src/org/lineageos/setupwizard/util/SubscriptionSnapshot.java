@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.setupwizard.util;
+
+import android.telephony.ServiceState;
+import android.telephony.SignalStrength;
+import android.telephony.SubscriptionInfo;
+import android.telephony.TelephonyManager;
+
+/**
+ * Immutable state of one active subscription, as last seen by {@link PhoneMonitor}.
+ *
+ * A change produces a new snapshot, so a reader can use one without it changing underneath.
+ */
+public final class SubscriptionSnapshot {
+
+    private final SubscriptionInfo mSubscriptionInfo;
+    private final int mSimState;
+    private final int mPhoneType;
+    private final int mLteOnCdmaMode;
+    private final String mSimOperatorName;
+    private final String mNetworkOperatorName;
+    private final ServiceState mServiceState;
+    private final SignalStrength mSignalStrength;
+    private final int mDataState;
+
+    SubscriptionSnapshot(SubscriptionInfo subscriptionInfo, int simState, int phoneType,
+            int lteOnCdmaMode, String simOperatorName, String networkOperatorName,
+            ServiceState serviceState, SignalStrength signalStrength, int dataState) {
+        mSubscriptionInfo = subscriptionInfo;
+        mSimState = simState;
+        mPhoneType = phoneType;
+        mLteOnCdmaMode = lteOnCdmaMode;
+        mSimOperatorName = simOperatorName;
+        mNetworkOperatorName = networkOperatorName;
+        mServiceState = serviceState;
+        mSignalStrength = signalStrength;
+        mDataState = dataState;
+    }
+
+    SubscriptionSnapshot withServiceState(ServiceState serviceState,
+            String networkOperatorName) {
+        return new SubscriptionSnapshot(mSubscriptionInfo, mSimState, mPhoneType,
+                mLteOnCdmaMode, mSimOperatorName, networkOperatorName, serviceState,
+                mSignalStrength, mDataState);
+    }
+
+    SubscriptionSnapshot withSignalStrength(SignalStrength signalStrength) {
+        return new SubscriptionSnapshot(mSubscriptionInfo, mSimState, mPhoneType,
+                mLteOnCdmaMode, mSimOperatorName, mNetworkOperatorName, mServiceState,
+                signalStrength, mDataState);
+    }
+
+    SubscriptionSnapshot withDataState(int dataState) {
+        return new SubscriptionSnapshot(mSubscriptionInfo, mSimState, mPhoneType,
+                mLteOnCdmaMode, mSimOperatorName, mNetworkOperatorName, mServiceState,
+                mSignalStrength, dataState);
+    }
+
+    /**
+     * @return This snapshot with the state only the callbacks report taken from the given
+     * one: the service state, signal strength and data state.
+     */
+    SubscriptionSnapshot withCallbackState(SubscriptionSnapshot from) {
+        return new SubscriptionSnapshot(mSubscriptionInfo, mSimState, mPhoneType,
+                mLteOnCdmaMode, mSimOperatorName, mNetworkOperatorName, from.mServiceState,
+                from.mSignalStrength, from.mDataState);
+    }
+
+    public SubscriptionInfo getSubscriptionInfo() {
+        return mSubscriptionInfo;
+    }
+
+    public int getSubscriptionId() {
+        return mSubscriptionInfo.getSubscriptionId();
+    }
+
+    public int getSimSlotIndex() {
+        return mSubscriptionInfo.getSimSlotIndex();
+    }
+
+    public int getSimState() {
+        return mSimState;
+    }
+
+    public int getPhoneType() {
+        return mPhoneType;
+    }
+
+    public int getLteOnCdmaMode() {
+        return mLteOnCdmaMode;
+    }
+
+    public String getSimOperatorName() {
+        return mSimOperatorName;
+    }
+
+    public String getNetworkOperatorName() {
+        return mNetworkOperatorName;
+    }
+
+    /**
+     * @return The last service state reported for the subscription, or null if none was yet.
+     */
+    public ServiceState getServiceState() {
+        return mServiceState;
+    }
+
+    /**
+     * @return The last signal strength reported for the subscription, or null if none was yet.
+     */
+    public SignalStrength getSignalStrength() {
+        return mSignalStrength;
+    }
+
+    /**
+     * @return The last data connection state reported for the subscription, or
+     * {@link TelephonyManager#DATA_UNKNOWN} if none was yet.
+     */
+    public int getDataState() {
+        return mDataState;
+    }
+
+    @Override
+    public String toString() {
+        return "{subId=" + getSubscriptionId() + " slot=" + getSimSlotIndex()
+                + " simState=" + mSimState + " phoneType=" + mPhoneType
+                + " lteOnCdmaMode=" + mLteOnCdmaMode + " dataState=" + mDataState
+                + " sim=\"" + mSimOperatorName + "\""
+                + " network=\"" + mNetworkOperatorName + "\"}";
+    }
+}
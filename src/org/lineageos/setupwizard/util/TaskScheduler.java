@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.setupwizard.util;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Runs the asynchronous work of the wizard.
+ *
+ * Work goes to the main thread, to a bounded background pool, or to a named serial lane that
+ * runs one task at a time on that pool. Work that blocks on the network goes to a pool of its
+ * own, so that short work never queues behind it. Every task has a name, under which the time
+ * it waited in its queue and the time it ran are recorded for the dump.
+ *
+ * Screens schedule through a {@link Scope}, which they cancel when they are destroyed, so no
+ * task outlives the screen that started it. A scope can also debounce work and run it after a
+ * deadline.
+ */
+public final class TaskScheduler {
+
+    private static final String TAG = TaskScheduler.class.getSimpleName();
+
+    private static final int POOL_SIZE = 4;
+    private static final long POOL_KEEP_ALIVE_SECONDS = 30;
+    // Enough for the probes of two networks at once.
+    private static final int NETWORK_POOL_SIZE = 6;
+
+    private static TaskScheduler sInstance;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor mPool;
+    private final ThreadPoolExecutor mNetworkPool;
+    private final ArrayMap<String, SerialLane> mLanes = new ArrayMap<>();
+    private final ArrayMap<String, TaskStats> mStats = new ArrayMap<>();
+
+    /**
+     * A scheduled piece of work. Cancelling it before it starts means it never runs.
+     */
+    public final class Task implements Runnable {
+        private final String mName;
+        private final Runnable mBody;
+        private final Scope mScope;
+        private volatile long mEnqueueMillis;
+        private volatile boolean mCancelled;
+        private volatile boolean mDone;
+
+        private Task(String name, Runnable body, Scope scope) {
+            mName = name;
+            mBody = body;
+            mScope = scope;
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+            final long start = SystemClock.uptimeMillis();
+            try {
+                mBody.run();
+            } finally {
+                mDone = true;
+                getStats(mName).add(start - mEnqueueMillis, SystemClock.uptimeMillis() - start);
+                if (mScope != null) {
+                    mScope.remove(this);
+                }
+            }
+        }
+
+        public void cancel() {
+            mCancelled = true;
+            mMainHandler.removeCallbacks(this);
+            if (mScope != null) {
+                mScope.remove(this);
+            }
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /**
+         * @return Whether the task is still to run.
+         */
+        public boolean isPending() {
+            return !mCancelled && !mDone;
+        }
+    }
+
+    /**
+     * A group of tasks cancelled together, typically the ones of a screen.
+     */
+    public final class Scope {
+        private final String mName;
+        private final ArraySet<Task> mTasks = new ArraySet<>();
+        private final ArrayMap<String, Task> mDebounced = new ArrayMap<>();
+        private boolean mCancelled;
+
+        private Scope(String name) {
+            mName = name;
+        }
+
+        public Task runOnMain(String name, Runnable body) {
+            return post(add(name, body), mMainHandler, 0);
+        }
+
+        public Task runInBackground(String name, Runnable body) {
+            return execute(add(name, body), mPool);
+        }
+
+        /**
+         * Computes a value in the background and hands it to the main thread, unless the task
+         * or the scope was cancelled in between.
+         */
+        public <T> Task runInBackground(String name, Supplier<T> work, Consumer<T> onResult) {
+            final Task[] task = new Task[1];
+            task[0] = add(name, () -> {
+                final T result = work.get();
+                if (!task[0].isCancelled()) {
+                    runOnMain(name + ".result", () -> onResult.accept(result));
+                }
+            });
+            return execute(task[0], mPool);
+        }
+
+        public Task runOnLane(String lane, String name, Runnable body) {
+            return execute(add(name, body), getLane(lane));
+        }
+
+        /**
+         * Runs the body on the main thread once the delay has passed.
+         */
+        public Task runOnMainDelayed(String name, Runnable body, long delayMillis) {
+            return post(add(name, body), mMainHandler, delayMillis);
+        }
+
+        /**
+         * Runs the body on the main thread once no other call for the same name has been
+         * made for the given delay.
+         */
+        public Task debounce(String name, Runnable body, long delayMillis) {
+            final Task task;
+            synchronized (this) {
+                final Task previous = mDebounced.get(name);
+                if (previous != null) {
+                    previous.cancel();
+                }
+                task = runOnMainDelayed(name, body, delayMillis);
+                mDebounced.put(name, task);
+            }
+            return task;
+        }
+
+        /**
+         * Cancels every task of the scope. Tasks scheduled afterwards never run.
+         */
+        public void cancel() {
+            final Task[] tasks;
+            synchronized (this) {
+                mCancelled = true;
+                tasks = mTasks.toArray(new Task[0]);
+                mTasks.clear();
+                mDebounced.clear();
+            }
+            for (Task task : tasks) {
+                task.cancel();
+            }
+        }
+
+        private synchronized Task add(String name, Runnable body) {
+            final Task task = new Task(mName + "." + name, body, this);
+            if (mCancelled) {
+                task.mCancelled = true;
+            } else {
+                mTasks.add(task);
+            }
+            return task;
+        }
+
+        private synchronized void remove(Task task) {
+            mTasks.remove(task);
+            mDebounced.values().remove(task);
+        }
+    }
+
+    private static final class TaskStats {
+        private int mCount;
+        private long mTotalWaitMillis;
+        private long mMaxWaitMillis;
+        private long mTotalRunMillis;
+        private long mMaxRunMillis;
+
+        synchronized void add(long waitMillis, long runMillis) {
+            mCount++;
+            mTotalWaitMillis += waitMillis;
+            mMaxWaitMillis = Math.max(mMaxWaitMillis, waitMillis);
+            mTotalRunMillis += runMillis;
+            mMaxRunMillis = Math.max(mMaxRunMillis, runMillis);
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "count=" + mCount
+                    + " waitMs avg=" + (mTotalWaitMillis / mCount) + " max=" + mMaxWaitMillis
+                    + " runMs avg=" + (mTotalRunMillis / mCount) + " max=" + mMaxRunMillis;
+        }
+    }
+
+    /**
+     * Runs its tasks one after the other on the pool.
+     */
+    private final class SerialLane implements Executor {
+        private final ArrayDeque<Runnable> mQueue = new ArrayDeque<>();
+        private Runnable mActive;
+
+        @Override
+        public synchronized void execute(Runnable r) {
+            mQueue.offer(() -> {
+                try {
+                    r.run();
+                } finally {
+                    scheduleNext();
+                }
+            });
+            if (mActive == null) {
+                scheduleNext();
+            }
+        }
+
+        private synchronized void scheduleNext() {
+            mActive = mQueue.poll();
+            if (mActive != null) {
+                mPool.execute(mActive);
+            }
+        }
+    }
+
+    public static synchronized TaskScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new TaskScheduler();
+        }
+        return sInstance;
+    }
+
+    private TaskScheduler() {
+        mPool = createPool(TAG, POOL_SIZE);
+        mNetworkPool = createPool(TAG + "-network", NETWORK_POOL_SIZE);
+    }
+
+    private static ThreadPoolExecutor createPool(String name, int size) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(size, size,
+                POOL_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(() -> {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }, name + "-" + threadCount.incrementAndGet());
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Creates a scope for the tasks of the given owner, used as a prefix of their names.
+     */
+    public Scope newScope(String name) {
+        return new Scope(name);
+    }
+
+    public Task runOnMain(String name, Runnable body) {
+        return post(new Task(name, body, null), mMainHandler, 0);
+    }
+
+    public Task runInBackground(String name, Runnable body) {
+        return execute(new Task(name, body, null), mPool);
+    }
+
+    public Task runOnLane(String lane, String name, Runnable body) {
+        return execute(new Task(name, body, null), getLane(lane));
+    }
+
+    /**
+     * Runs work that blocks on the network, such as an HTTP request, away from the pool of
+     * short background work.
+     */
+    public Task runNetworkIo(String name, Runnable body) {
+        return execute(new Task(name, body, null), mNetworkPool);
+    }
+
+    public Task runOnMainDelayed(String name, Runnable body, long delayMillis) {
+        return post(new Task(name, body, null), mMainHandler, delayMillis);
+    }
+
+    private Task post(Task task, Handler handler, long delayMillis) {
+        // A delayed task is only late once its deadline has passed.
+        task.mEnqueueMillis = SystemClock.uptimeMillis() + delayMillis;
+        if (!task.mCancelled) {
+            handler.postAtTime(task, task.mEnqueueMillis);
+        }
+        return task;
+    }
+
+    private Task execute(Task task, Executor executor) {
+        task.mEnqueueMillis = SystemClock.uptimeMillis();
+        if (!task.mCancelled) {
+            executor.execute(task);
+        }
+        return task;
+    }
+
+    private SerialLane getLane(String name) {
+        synchronized (mLanes) {
+            SerialLane lane = mLanes.get(name);
+            if (lane == null) {
+                lane = new SerialLane();
+                mLanes.put(name, lane);
+            }
+            return lane;
+        }
+    }
+
+    private TaskStats getStats(String name) {
+        synchronized (mStats) {
+            TaskStats stats = mStats.get(name);
+            if (stats == null) {
+                stats = new TaskStats();
+                mStats.put(name, stats);
+            }
+            return stats;
+        }
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "TaskScheduler pool active=" + mPool.getActiveCount()
+                + " queued=" + mPool.getQueue().size()
+                + " completed=" + mPool.getCompletedTaskCount()
+                + " network active=" + mNetworkPool.getActiveCount()
+                + " queued=" + mNetworkPool.getQueue().size()
+                + " completed=" + mNetworkPool.getCompletedTaskCount());
+        synchronized (mStats) {
+            for (int i = 0; i < mStats.size(); i++) {
+                writer.println(prefix + "  " + mStats.keyAt(i) + " " + mStats.valueAt(i));
+            }
+        }
+    }
+}
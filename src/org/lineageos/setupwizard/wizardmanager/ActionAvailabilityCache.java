@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.setupwizard.wizardmanager;
+
+import static org.lineageos.setupwizard.SetupWizardApp.LOGV;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.util.Log;
+
+import org.lineageos.setupwizard.util.ComponentStateEngine;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Caches whether each {@link WizardAction} resolves to an activity, so that stepping through
+ * the script does not query the PackageManager on every transition.
+ *
+ * Entries are dropped when one of our own components is toggled through
+ * {@link ComponentStateEngine}, or when PACKAGE_CHANGED arrives for the package
+ * an action resolved to. Unresolved actions are dropped on any change, since any package may
+ * start handling them.
+ *
+ * Lookups run on the main thread during navigation, so they never flush component changes
+ * still queued in {@link ComponentStateEngine} or wait for a flush. When such a change can
+ * alter the answer, a change of the component the action resolved to or any change for an
+ * action that did not resolve or was not resolved yet, the answer is worked out from the
+ * pending states and not cached. Applying the change drops the entries it affects.
+ */
+public class ActionAvailabilityCache {
+
+    private static final String TAG = ActionAvailabilityCache.class.getSimpleName();
+
+    private static ActionAvailabilityCache sInstance;
+
+    private static final class Entry {
+        static final Entry UNAVAILABLE = new Entry(null);
+
+        final ComponentName component;
+
+        Entry(ComponentName component) {
+            this.component = component;
+        }
+    }
+
+    private final Context mContext;
+    private final Map<String, Entry> mEntries = new ConcurrentHashMap<>();
+    private volatile int mGeneration;
+    private final AtomicInteger mPendingLookupCount = new AtomicInteger();
+
+    private final BroadcastReceiver mPackageChangedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent.getData() != null) {
+                invalidate(intent.getData().getSchemeSpecificPart());
+            }
+        }
+    };
+
+    public static synchronized ActionAvailabilityCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ActionAvailabilityCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Called after one of our components changed its enabled state.
+     */
+    public static void onComponentEnabledStateChanged(ComponentName componentName) {
+        final ActionAvailabilityCache cache;
+        synchronized (ActionAvailabilityCache.class) {
+            cache = sInstance;
+        }
+        if (cache != null) {
+            cache.invalidate(componentName.getPackageName());
+        }
+    }
+
+    public static synchronized void onSetupFinished() {
+        if (sInstance != null) {
+            sInstance.mContext.unregisterReceiver(sInstance.mPackageChangedReceiver);
+            sInstance = null;
+        }
+    }
+
+    private ActionAvailabilityCache(Context context) {
+        mContext = context;
+        IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        mContext.registerReceiver(mPackageChangedReceiver, filter);
+    }
+
+    /**
+     * Resolves every action of the script before returning, so that the lookups made while
+     * stepping through it are served from memory. Blocks on binder calls, don't call it on the
+     * main thread.
+     */
+    public void resolveAll(WizardScript wizardScript) {
+        for (WizardAction action : wizardScript.getActions()) {
+            isAvailable(action);
+        }
+        if (LOGV) {
+            Log.v(TAG, "resolveAll resolved " + mEntries.size() + " actions, "
+                    + mPendingLookupCount.get() + " lookups with pending changes");
+        }
+    }
+
+    public boolean isAvailable(WizardAction action) {
+        final ComponentStateEngine engine = ComponentStateEngine.getInstance(mContext);
+        Entry entry = mEntries.get(action.getUri());
+        if ((entry != null && entry.component != null)
+                ? engine.hasPendingChange(entry.component) : engine.hasPendingChanges()) {
+            // Component changes still queued would make the cached answer stale.
+            mPendingLookupCount.incrementAndGet();
+            return resolvePending(action, engine.getPendingStates()) != Entry.UNAVAILABLE;
+        }
+        if (entry == null) {
+            final int generation = mGeneration;
+            entry = resolve(action);
+            // Don't cache a result that may predate an invalidation.
+            if (generation == mGeneration) {
+                mEntries.put(action.getUri(), entry);
+            }
+        }
+        return entry != Entry.UNAVAILABLE;
+    }
+
+    public void invalidate(String packageName) {
+        if (LOGV) {
+            Log.v(TAG, "invalidate packageName=" + packageName);
+        }
+        mGeneration++;
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.component == null
+                    || entry.component.getPackageName().equals(packageName)) {
+                it.remove();
+            }
+        }
+    }
+
+    public void clear() {
+        mGeneration++;
+        mEntries.clear();
+    }
+
+    private Entry resolve(WizardAction action) {
+        Intent intent = action.getIntentTemplate();
+        if (intent == null) {
+            return Entry.UNAVAILABLE;
+        }
+        List<ResolveInfo> infos = mContext.getPackageManager().queryIntentActivities(intent,
+                PackageManager.MATCH_DEFAULT_ONLY);
+        if (infos.isEmpty()) {
+            return Entry.UNAVAILABLE;
+        }
+        return new Entry(getComponentName(infos.get(0)));
+    }
+
+    /**
+     * Resolves the action as it will once the given pending states are applied. The states are
+     * taken before querying, so a change applied in between is seen by both.
+     */
+    private Entry resolvePending(WizardAction action, Map<ComponentName, Integer> pendingStates) {
+        Intent intent = action.getIntentTemplate();
+        if (intent == null) {
+            return Entry.UNAVAILABLE;
+        }
+        final PackageManager pm = mContext.getPackageManager();
+        final HashSet<ComponentName> enabled = new HashSet<>();
+        for (ResolveInfo info : pm.queryIntentActivities(intent,
+                PackageManager.MATCH_DEFAULT_ONLY)) {
+            enabled.add(getComponentName(info));
+        }
+        for (ResolveInfo info : pm.queryIntentActivities(intent,
+                PackageManager.MATCH_DEFAULT_ONLY | PackageManager.MATCH_DISABLED_COMPONENTS)) {
+            final ComponentName component = getComponentName(info);
+            final Integer state = pendingStates.get(component);
+            final boolean isEnabled;
+            if (state == null) {
+                isEnabled = enabled.contains(component);
+            } else if (state == PackageManager.COMPONENT_ENABLED_STATE_DEFAULT) {
+                isEnabled = info.activityInfo.enabled
+                        && info.activityInfo.applicationInfo.enabled;
+            } else {
+                isEnabled = state == PackageManager.COMPONENT_ENABLED_STATE_ENABLED;
+            }
+            if (isEnabled) {
+                return new Entry(component);
+            }
+        }
+        return Entry.UNAVAILABLE;
+    }
+
+    private static ComponentName getComponentName(ResolveInfo info) {
+        return new ComponentName(info.activityInfo.packageName, info.activityInfo.name);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.setupwizard.wizardmanager;
+
+import static org.lineageos.setupwizard.SetupWizardApp.LOGV;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
+import android.util.Log;
+import android.util.TypedValue;
+
+import org.lineageos.setupwizard.R;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reader for the binary wizard scripts emitted by the WizardScriptCompiler host tool.
+ *
+ * A compiled script is stored next to its XML source as res/raw/&lt;name&gt;_compiled.bin.
+ * The blob is mapped directly out of the APK when it is stored uncompressed, otherwise it is
+ * read with a single read into one buffer. Decoding allocates the strings and the tables of
+ * the resulting {@link WizardGraph} and nothing else. See WizardScriptCompiler for the layout.
+ */
+final class CompiledWizardScript {
+
+    private static final String TAG = "CompiledWizardScript";
+
+    private static final int MAGIC = 0x57495a53; // "WIZS"
+    private static final int VERSION = 1;
+
+    // The res/raw wizard scripts SetupWizard-compiled-scripts compiles, with their compiled
+    // form. The wizard_script ones define no firstAction and are left to the XML parser.
+    private static final int[][] COMPILED_SCRIPTS = {
+            { R.raw.lineage_wizard_script, R.raw.lineage_wizard_script_compiled },
+            { R.raw.lineage_wizard_script_user, R.raw.lineage_wizard_script_user_compiled },
+    };
+
+    private CompiledWizardScript() {
+    }
+
+    /**
+     * @return The resource id of the compiled form of the given raw wizard script of this
+     * package, or 0 if the script was not compiled at build time or was overlaid since, in
+     * which case the compiled form is not what the script says.
+     */
+    static int getCompiledResourceId(Resources res, int scriptResId) {
+        for (int[] script : COMPILED_SCRIPTS) {
+            if (script[0] == scriptResId) {
+                return isOverlaid(res, script[0], script[1]) ? 0 : script[1];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return Whether the script comes from another APK than its compiled form, as it does
+     * when a runtime resource overlay replaces it.
+     */
+    private static boolean isOverlaid(Resources res, int scriptResId, int compiledResId) {
+        final TypedValue script = new TypedValue();
+        final TypedValue compiled = new TypedValue();
+        res.getValue(scriptResId, script, true);
+        res.getValue(compiledResId, compiled, true);
+        if (script.assetCookie != compiled.assetCookie) {
+            if (LOGV) {
+                Log.v(TAG, "Script overlaid by " + script.string + ", ignoring "
+                        + compiled.string);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    static WizardScript load(Resources res, int compiledResId) throws IOException {
+        return parse(map(res, compiledResId));
+    }
+
+    private static ByteBuffer map(Resources res, int resId) throws IOException {
+        try (AssetFileDescriptor afd = res.openRawResourceFd(resId);
+             FileInputStream in = afd.createInputStream();
+             FileChannel channel = in.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, afd.getStartOffset(),
+                    afd.getLength());
+        } catch (FileNotFoundException | Resources.NotFoundException e) {
+            // The resource is compressed inside the APK and can't be mapped.
+            if (LOGV) {
+                Log.v(TAG, "Unable to map compiled script, reading it instead");
+            }
+        }
+        try (InputStream in = res.openRawResource(resId)) {
+            return ByteBuffer.wrap(in.readAllBytes());
+        }
+    }
+
+    static WizardScript parse(ByteBuffer buffer) throws IOException {
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a compiled wizard script");
+            }
+            final int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported compiled wizard script version " + version);
+            }
+
+            final String[] strings = new String[buffer.getInt()];
+            byte[] scratch = null;
+            for (int i = 0; i < strings.length; i++) {
+                final int length = buffer.getInt();
+                if (buffer.hasArray()) {
+                    strings[i] = new String(buffer.array(),
+                            buffer.arrayOffset() + buffer.position(), length,
+                            StandardCharsets.UTF_8);
+                    buffer.position(buffer.position() + length);
+                } else {
+                    // A mapped buffer has no array, copy each string through one buffer.
+                    if (scratch == null || scratch.length < length) {
+                        scratch = new byte[Math.max(length, 256)];
+                    }
+                    buffer.get(scratch, 0, length);
+                    strings[i] = new String(scratch, 0, length, StandardCharsets.UTF_8);
+                }
+            }
+
+            final int firstAction = buffer.getInt();
+            final int actionCount = buffer.getInt();
+            final String[] ids = new String[actionCount];
+            final String[] uris = new String[actionCount];
+            final int[][] resultCodes = new int[actionCount][];
+            final int[][] targets = new int[actionCount][];
+            final int[] defaultTargets = new int[actionCount];
+            // Targets name actions by their id in the string table, the graph by index.
+            final int[] actionIndices = new int[strings.length];
+            Arrays.fill(actionIndices, WizardGraph.NO_ACTION);
+            for (int i = 0; i < actionCount; i++) {
+                final int id = buffer.getInt();
+                ids[i] = strings[id];
+                uris[i] = strings[buffer.getInt()];
+                actionIndices[id] = i;
+                defaultTargets[i] = buffer.getInt();
+                final int transitionCount = buffer.getInt();
+                resultCodes[i] = new int[transitionCount];
+                targets[i] = new int[transitionCount];
+                for (int t = 0; t < transitionCount; t++) {
+                    resultCodes[i][t] = buffer.getInt();
+                }
+                for (int t = 0; t < transitionCount; t++) {
+                    targets[i][t] = buffer.getInt();
+                }
+            }
+            for (int i = 0; i < actionCount; i++) {
+                defaultTargets[i] = toActionIndex(actionIndices, defaultTargets[i]);
+                for (int t = 0; t < targets[i].length; t++) {
+                    targets[i][t] = toActionIndex(actionIndices, targets[i][t]);
+                }
+            }
+            return new WizardScript(WizardGraph.fromTables(ids, uris,
+                    toActionIndex(actionIndices, firstAction), resultCodes, targets,
+                    defaultTargets), strings[firstAction]);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException
+                | IllegalArgumentException e) {
+            throw new IOException("Truncated or corrupt compiled wizard script", e);
+        }
+    }
+
+    private static int toActionIndex(int[] actionIndices, int string) {
+        return string >= 0 ? actionIndices[string] : WizardGraph.NO_ACTION;
+    }
+}
@@ -33,15 +33,23 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class WizardAction implements Parcelable {
 
     private static final String TAG = "WizardAction";
 
+    private static final AtomicInteger sUriParseCount = new AtomicInteger();
+    private static final AtomicInteger sIntentCopyCount = new AtomicInteger();
+
     private final String mId;
     private final String mUri;
     private final WizardTransitions mTransitions;
 
+    // Parsed once from mUri and never handed out; callers get copies.
+    private Intent mIntentTemplate;
+    private boolean mIntentTemplateParsed;
+
     public WizardAction(String id, String uri, WizardTransitions transitions) {
         if (transitions == null) {
             throw new IllegalArgumentException("WizardTransitions cannot be null");
@@ -59,14 +67,51 @@ public class WizardAction implements Parcelable {
         return mUri;
     }
 
+    /**
+     * @return A new Intent for this action that the caller may modify, or null if the URI
+     * could not be parsed.
+     */
     public Intent getIntent() {
-        Intent intent = null;
-        try {
-            intent = Intent.parseUri(mUri, FLAG_GRANT_READ_URI_PERMISSION);
-        } catch (URISyntaxException e) {
-            Log.e(TAG, "Bad URI: " + mUri);
+        Intent template = getIntentTemplate();
+        if (template == null) {
+            return null;
+        }
+        sIntentCopyCount.incrementAndGet();
+        return new Intent(template);
+    }
+
+    /**
+     * @return The shared, parsed Intent for this action. It must not be modified.
+     */
+    synchronized Intent getIntentTemplate() {
+        if (!mIntentTemplateParsed) {
+            mIntentTemplateParsed = true;
+            sUriParseCount.incrementAndGet();
+            try {
+                mIntentTemplate = Intent.parseUri(mUri, FLAG_GRANT_READ_URI_PERMISSION);
+            } catch (URISyntaxException e) {
+                Log.e(TAG, "Bad URI: " + mUri);
+            }
         }
-        return intent;
+        return mIntentTemplate;
+    }
+
+    /**
+     * @return The number of times any action parsed its URI in this process.
+     */
+    public static int getUriParseCount() {
+        return sUriParseCount.get();
+    }
+
+    /**
+     * @return The number of Intents handed out by {@link #getIntent()} in this process.
+     */
+    public static int getIntentCopyCount() {
+        return sIntentCopyCount.get();
+    }
+
+    WizardTransitions getTransitions() {
+        return mTransitions;
     }
 
     public String getNextAction(int resultCode) {
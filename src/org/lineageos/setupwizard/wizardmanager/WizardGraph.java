@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.setupwizard.wizardmanager;
+
+import android.app.Activity;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compiled form of a {@link WizardScript}.
+ *
+ * Actions are numbered densely in script order and each action's transitions are kept as a
+ * pair of int arrays (result code to target index) plus a default target, so stepping through
+ * the script never touches a String.
+ */
+public final class WizardGraph implements Parcelable {
+
+    public static final int NO_ACTION = -1;
+
+    private final WizardAction[] mActions;
+    private final Map<String, Integer> mIndices;
+    private final int mFirstAction;
+    private final int[][] mResultCodes;
+    private final int[][] mTargets;
+    private final int[] mDefaultTargets;
+
+    private WizardGraph(WizardAction[] actions, Map<String, Integer> indices, int firstAction,
+            int[][] resultCodes, int[][] targets, int[] defaultTargets) {
+        mActions = actions;
+        mIndices = Collections.unmodifiableMap(indices);
+        mFirstAction = firstAction;
+        mResultCodes = resultCodes;
+        mTargets = targets;
+        mDefaultTargets = defaultTargets;
+    }
+
+    private static HashMap<String, Integer> indexActions(WizardAction[] actions) {
+        final HashMap<String, Integer> indices = new HashMap<>(actions.length * 2);
+        for (int i = 0; i < actions.length; i++) {
+            indices.put(actions[i].getId(), i);
+        }
+        return indices;
+    }
+
+    static WizardGraph build(Collection<WizardAction> actions, String firstActionId) {
+        final WizardAction[] actionArray = actions.toArray(new WizardAction[0]);
+        final HashMap<String, Integer> indices = indexActions(actionArray);
+        final int[][] resultCodes = new int[actionArray.length][];
+        final int[][] targets = new int[actionArray.length][];
+        final int[] defaultTargets = new int[actionArray.length];
+        for (int i = 0; i < actionArray.length; i++) {
+            final WizardTransitions transitions = actionArray[i].getTransitions();
+            final int size = transitions.size();
+            resultCodes[i] = new int[size];
+            targets[i] = new int[size];
+            for (int t = 0; t < size; t++) {
+                resultCodes[i][t] = transitions.keyAt(t);
+                targets[i][t] = indexOf(indices, transitions.valueAt(t));
+            }
+            defaultTargets[i] = indexOf(indices, transitions.getDefaultAction());
+        }
+        return new WizardGraph(actionArray, indices, indexOf(indices, firstActionId),
+                resultCodes, targets, defaultTargets);
+    }
+
+    /**
+     * Builds a graph from its tables, taking ownership of the arrays. Result codes must be in
+     * ascending order.
+     */
+    static WizardGraph fromTables(String[] ids, String[] uris, int firstAction,
+            int[][] resultCodes, int[][] targets, int[] defaultTargets) {
+        // Rebuild the String transitions backing the WizardAction API from the tables.
+        final WizardAction[] actions = new WizardAction[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            final WizardTransitions transitions = new WizardTransitions();
+            if (defaultTargets[i] != NO_ACTION) {
+                transitions.setDefaultAction(ids[defaultTargets[i]]);
+            }
+            for (int t = 0; t < resultCodes[i].length; t++) {
+                transitions.append(resultCodes[i][t],
+                        targets[i][t] != NO_ACTION ? ids[targets[i][t]] : null);
+            }
+            actions[i] = new WizardAction(ids[i], uris[i], transitions);
+        }
+        return new WizardGraph(actions, indexActions(actions), firstAction, resultCodes,
+                targets, defaultTargets);
+    }
+
+    private static int indexOf(Map<String, Integer> indices, String actionId) {
+        Integer index = actionId != null ? indices.get(actionId) : null;
+        return index != null ? index : NO_ACTION;
+    }
+
+    public int size() {
+        return mActions.length;
+    }
+
+    public WizardAction getAction(int index) {
+        return index != NO_ACTION ? mActions[index] : null;
+    }
+
+    public int indexOf(String actionId) {
+        return indexOf(mIndices, actionId);
+    }
+
+    public int getFirstAction() {
+        return mFirstAction;
+    }
+
+    public int getNextAction(int currentAction, int resultCode) {
+        if (currentAction == NO_ACTION || resultCode == Activity.RESULT_CANCELED) {
+            return NO_ACTION;
+        }
+        // Scripts define at most a handful of result codes per action, a linear scan beats
+        // a binary search here.
+        final int[] resultCodes = mResultCodes[currentAction];
+        for (int i = 0; i < resultCodes.length; i++) {
+            if (resultCodes[i] == resultCode) {
+                return mTargets[currentAction][i];
+            }
+        }
+        return mDefaultTargets[currentAction];
+    }
+
+    public int describeContents() {
+        return 0;
+    }
+
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(mActions.length);
+        for (int i = 0; i < mActions.length; i++) {
+            dest.writeString(mActions[i].getId());
+            dest.writeString(mActions[i].getUri());
+            dest.writeIntArray(mResultCodes[i]);
+            dest.writeIntArray(mTargets[i]);
+            dest.writeInt(mDefaultTargets[i]);
+        }
+        dest.writeInt(mFirstAction);
+    }
+
+    /**
+     * Writes the tables in the form {@link #readFrom(DataInputStream)} reads back.
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(mActions.length);
+        for (int i = 0; i < mActions.length; i++) {
+            out.writeUTF(mActions[i].getId());
+            out.writeUTF(mActions[i].getUri());
+            out.writeInt(mResultCodes[i].length);
+            for (int t = 0; t < mResultCodes[i].length; t++) {
+                out.writeInt(mResultCodes[i][t]);
+                out.writeInt(mTargets[i][t]);
+            }
+            out.writeInt(mDefaultTargets[i]);
+        }
+        out.writeInt(mFirstAction);
+    }
+
+    static WizardGraph readFrom(DataInputStream in) throws IOException {
+        final int size = in.readInt();
+        final String[] ids = new String[size];
+        final String[] uris = new String[size];
+        final int[][] resultCodes = new int[size][];
+        final int[][] targets = new int[size][];
+        final int[] defaultTargets = new int[size];
+        for (int i = 0; i < size; i++) {
+            ids[i] = in.readUTF();
+            uris[i] = in.readUTF();
+            final int transitionCount = in.readInt();
+            resultCodes[i] = new int[transitionCount];
+            targets[i] = new int[transitionCount];
+            for (int t = 0; t < transitionCount; t++) {
+                resultCodes[i][t] = in.readInt();
+                targets[i][t] = readIndex(in, size);
+            }
+            defaultTargets[i] = readIndex(in, size);
+        }
+        final int firstAction = readIndex(in, size);
+        return fromTables(ids, uris, firstAction, resultCodes, targets, defaultTargets);
+    }
+
+    private static int readIndex(DataInputStream in, int size) throws IOException {
+        final int index = in.readInt();
+        if (index != NO_ACTION && (index < 0 || index >= size)) {
+            throw new IOException("Action index out of range: " + index);
+        }
+        return index;
+    }
+
+    public static final Creator<WizardGraph> CREATOR = new Creator<WizardGraph>() {
+        public WizardGraph createFromParcel(Parcel source) {
+            final int size = source.readInt();
+            final String[] ids = new String[size];
+            final String[] uris = new String[size];
+            final int[][] resultCodes = new int[size][];
+            final int[][] targets = new int[size][];
+            final int[] defaultTargets = new int[size];
+            for (int i = 0; i < size; i++) {
+                ids[i] = source.readString();
+                uris[i] = source.readString();
+                resultCodes[i] = source.createIntArray();
+                targets[i] = source.createIntArray();
+                defaultTargets[i] = source.readInt();
+            }
+            final int firstAction = source.readInt();
+            return fromTables(ids, uris, firstAction, resultCodes, targets, defaultTargets);
+        }
+
+        public WizardGraph[] newArray(int size) {
+            return new WizardGraph[size];
+        }
+    };
+}
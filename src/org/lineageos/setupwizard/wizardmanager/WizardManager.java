@@ -28,24 +28,17 @@ import android.annotation.Nullable;
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.util.Log;
 
-import com.google.android.setupcompat.util.ResultCodes;
-import com.google.android.setupcompat.util.WizardManagerHelper;
-import com.google.android.setupdesign.util.ThemeHelper;
-
-import org.lineageos.setupwizard.util.SetupWizardUtils;
-
-import java.util.HashMap;
+import org.lineageos.setupwizard.SetupWizardApp;
+import org.lineageos.setupwizard.util.StartupProfiler;
+import org.lineageos.setupwizard.util.TaskScheduler;
 
 public class WizardManager extends Activity {
 
     private static final String TAG = WizardManager.class.getSimpleName();
 
-    private static final HashMap<String, WizardScript> sWizardScripts = new HashMap();
-
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -64,7 +57,10 @@ public class WizardManager extends Activity {
             }
 
             if (ACTION_LOAD.equals(action)) {
-                load(scriptUri, intent);
+                StartupProfiler.begin(StartupProfiler.PHASE_WIZARD_LOAD);
+                // We have no display and must finish before resuming, the first action is
+                // started from the application once it is resolved.
+                load(getApplicationContext(), scriptUri, intent);
                 finish();
                 return;
             }
@@ -82,120 +78,57 @@ public class WizardManager extends Activity {
         finish();
     }
 
-    private void addExtras(Intent intent) {
-        intent.putExtra(WizardManagerHelper.EXTRA_IS_FIRST_RUN, true);
-        intent.putExtra(WizardManagerHelper.EXTRA_THEME, ThemeHelper.THEME_GLIF_V3_LIGHT);
-    }
-
     private void doAction(String scriptUri, WizardAction action, Intent extras) {
-        Intent intent = action.getIntent();
-        intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
-        if (LOGV) {
-            Log.v(TAG, "doAction scriptUri=" + scriptUri + " extras=" + extras
-                    + " intent=" + intent + " extras2=" + intent.getExtras() + " action=" + action);
-        }
-
-        addExtras(intent);
-        if (extras != null) {
-            intent.putExtras(extras);
-        }
-
-        intent.putExtra(EXTRA_SCRIPT_URI, scriptUri);
-        intent.putExtra(EXTRA_ACTION_ID, action.getId());
-        startActivity(intent);
+        startActivity(WizardNavigator.getActionIntent(scriptUri, action, extras));
     }
 
-    private void load(String scriptUri, Intent extras) {
-        WizardScript wizardScript = getWizardScript(this, scriptUri);
-        WizardAction wizardAction;
-        for (wizardAction = wizardScript.getFirstAction();
-                wizardAction != null;
-                wizardAction = wizardScript.getNextAction(wizardAction.getId(),
-                        ResultCodes.RESULT_ACTIVITY_NOT_FOUND)) {
-            if (isActionAvailable(this, wizardAction)) {
-                break;
-            }
-
-            if (LOGV) {
-                Log.v(TAG, "load action not available " + wizardAction);
+    /**
+     * Loads the script and resolves every action of it in the background, then starts the
+     * first available action on the main thread. Resolving the first action after all of them
+     * makes it a lookup, and keeps the waits and binder calls off the main thread.
+     */
+    private static void load(Context context, String scriptUri, Intent extras) {
+        final TaskScheduler scheduler = TaskScheduler.getInstance();
+        scheduler.runInBackground("WizardManager.load", () -> {
+            // The first available action depends on which screens were disabled at startup.
+            SetupWizardApp.awaitStartupTask(SetupWizardApp.TASK_MISSING_FEATURES);
+            final WizardScript wizardScript = WizardScriptRegistry.get(context, scriptUri);
+            final WizardAction wizardAction;
+            if (wizardScript == null) {
+                Log.e(TAG, "load could not load scriptUri=" + scriptUri);
+                wizardAction = null;
+            } else {
+                ActionAvailabilityCache.getInstance(context).resolveAll(wizardScript);
+                wizardAction = WizardNavigator.resolveFirstAction(context, wizardScript);
+                if (wizardAction == null) {
+                    Log.e(TAG, "load could not resolve first action scriptUri=" +
+                            scriptUri + " actionId=" + wizardScript.getFirstActionId());
+                }
             }
-        }
-
-        if (wizardAction != null) {
-            doAction(scriptUri, wizardAction, extras);
-        } else {
-            Log.e(TAG, "load could not resolve first action scriptUri=" +
-                    scriptUri + " actionId=" + wizardScript.getFirstActionId());
-            exit(scriptUri);
-        }
+            scheduler.runOnMain("WizardManager.start", () -> {
+                StartupProfiler.end(StartupProfiler.PHASE_WIZARD_LOAD);
+                StartupProfiler.begin(StartupProfiler.PHASE_FIRST_SCREEN);
+                if (wizardAction != null) {
+                    context.startActivity(WizardNavigator.getActionIntent(scriptUri,
+                            wizardAction, extras).addFlags(Intent.FLAG_ACTIVITY_NEW_TASK));
+                } else {
+                    WizardNavigator.exit(context, scriptUri);
+                }
+            });
+        });
     }
 
     private void next(String scriptUri, String actionId, int resultCode, Intent extras) {
         if (LOGV) {
             Log.v(TAG, "next actionId=" + actionId + " resultCode=" + resultCode);
         }
-        WizardAction wizardAction = checkNextAction(this, scriptUri,
+        WizardAction wizardAction = WizardNavigator.resolveNextAction(this, scriptUri,
                 actionId, resultCode);
         if (wizardAction != null) {
             doAction(scriptUri, wizardAction, extras);
         } else {
-            exit(scriptUri);
-        }
-    }
-
-    private void exit(String scriptUri) {
-        if (LOGV) {
-            Log.v(TAG, "exit scriptUri=" + scriptUri);
-        }
-        WizardManager.sWizardScripts.remove(scriptUri);
-        SetupWizardUtils.disableComponent(this, WizardManager.class);
-    }
-
-    private static WizardAction checkNextAction(Context context, String scriptUri, String actionId,
-            int resultCode) {
-        if (LOGV) {
-            Log.v(TAG, "checkNextAction scriptUri=" + scriptUri + " actionId="
-                    + actionId + " resultCode=" + resultCode);
-        }
-
-        WizardScript wizardScript = getWizardScript(context, scriptUri);
-        WizardAction wizardAction;
-        for (wizardAction = wizardScript.getNextAction(actionId, resultCode);
-                wizardAction != null;
-                wizardAction = wizardScript.getNextAction(wizardAction.getId(),
-                        ResultCodes.RESULT_ACTIVITY_NOT_FOUND)) {
-            if (WizardManager.isActionAvailable(context, wizardAction)) {
-                break;
-            }
-
-            if (LOGV) {
-                Log.v(TAG, "checkNextAction action not available " + wizardAction);
-            }
-        }
-
-        if (LOGV) {
-            Log.v(TAG, "checkNextAction action=" + wizardAction);
-        }
-
-        return wizardAction;
-    }
-
-    private static boolean isActionAvailable(Context context, WizardAction action) {
-        return isIntentAvailable(context, action.getIntent());
-    }
-
-    private static boolean isIntentAvailable(Context context, Intent intent) {
-        return context.getPackageManager().queryIntentActivities(intent,
-                PackageManager.MATCH_DEFAULT_ONLY).size() > 0;
-    }
-
-    private static WizardScript getWizardScript(Context context, String scriptUri) {
-        WizardScript wizardScript = sWizardScripts.get(scriptUri);
-        if (wizardScript == null) {
-            wizardScript = WizardScript.loadFromUri(context, scriptUri);
-            sWizardScripts.put(scriptUri, wizardScript);
+            WizardNavigator.exit(this, scriptUri);
         }
-        return wizardScript;
     }
 
 }
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.setupwizard.wizardmanager;
+
+import static org.lineageos.setupwizard.SetupWizardApp.EXTRA_ACTION_ID;
+import static org.lineageos.setupwizard.SetupWizardApp.EXTRA_RESULT_CODE;
+import static org.lineageos.setupwizard.SetupWizardApp.EXTRA_SCRIPT_URI;
+import static org.lineageos.setupwizard.SetupWizardApp.LOGV;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.setupcompat.util.ResultCodes;
+import com.google.android.setupcompat.util.WizardManagerHelper;
+import com.google.android.setupdesign.util.ThemeHelper;
+
+import org.lineageos.setupwizard.util.SetupWizardUtils;
+
+import java.io.PrintWriter;
+
+/**
+ * Resolves the next {@link WizardAction} of a wizard script inside our own process.
+ *
+ * Our screens use this to launch the next screen directly instead of bouncing through the
+ * {@link WizardManager} activity, which stays as the entry point for ACTION_LOAD and for
+ * ACTION_NEXT sent by other packages.
+ */
+public final class WizardNavigator {
+
+    private static final String TAG = WizardNavigator.class.getSimpleName();
+
+    /**
+     * Elapsed realtime at which the screen asked for its next action.
+     */
+    public static final String EXTRA_TRANSITION_START =
+            "org.lineageos.setupwizard.extra.TRANSITION_START";
+
+    /**
+     * Set when the next action was launched without going through {@link WizardManager}.
+     */
+    private static final String EXTRA_TRANSITION_DIRECT =
+            "org.lineageos.setupwizard.extra.TRANSITION_DIRECT";
+
+    private static final TransitionStats sDirectStats = new TransitionStats();
+    private static final TransitionStats sTrampolineStats = new TransitionStats();
+
+    private static final class TransitionStats {
+        private int mCount;
+        private long mTotalMillis;
+        private long mMaxMillis;
+
+        synchronized void add(long millis) {
+            mCount++;
+            mTotalMillis += millis;
+            mMaxMillis = Math.max(mMaxMillis, millis);
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "count=" + mCount + " avgMs=" + (mCount > 0 ? mTotalMillis / mCount : 0)
+                    + " maxMs=" + mMaxMillis;
+        }
+    }
+
+    private WizardNavigator() {
+    }
+
+    /**
+     * Resolves the action that follows the one described by the given ACTION_NEXT intent.
+     *
+     * @return The intent to start for the next action, or null if the script is finished, in
+     * which case the script has already been released.
+     */
+    public static Intent getNextIntent(Context context, Intent nextRequest) {
+        final String scriptUri = nextRequest.getStringExtra(EXTRA_SCRIPT_URI);
+        final String actionId = nextRequest.getStringExtra(EXTRA_ACTION_ID);
+        final int resultCode = nextRequest.getIntExtra(EXTRA_RESULT_CODE, 0);
+        if (LOGV) {
+            Log.v(TAG, "getNextIntent scriptUri=" + scriptUri + " actionId=" + actionId
+                    + " resultCode=" + resultCode);
+        }
+        WizardAction wizardAction = resolveNextAction(context, scriptUri, actionId, resultCode);
+        if (wizardAction == null) {
+            exit(context, scriptUri);
+            return null;
+        }
+        Intent intent = getActionIntent(scriptUri, wizardAction, nextRequest);
+        intent.putExtra(EXTRA_TRANSITION_DIRECT, true);
+        return intent;
+    }
+
+    /**
+     * Called when the screen of a wizard action comes to the foreground.
+     */
+    public static void onActionResumed(Context context, Intent intent) {
+        // After the process was killed, load the script before the screen asks for the next
+        // action.
+        WizardScriptRegistry.prefetch(context, intent.getStringExtra(EXTRA_SCRIPT_URI));
+        final long start = intent.getLongExtra(EXTRA_TRANSITION_START, 0);
+        if (start == 0) {
+            return;
+        }
+        final boolean direct = intent.getBooleanExtra(EXTRA_TRANSITION_DIRECT, false);
+        // Only the first resume ends the transition.
+        intent.removeExtra(EXTRA_TRANSITION_START);
+        final long millis = SystemClock.elapsedRealtime() - start;
+        (direct ? sDirectStats : sTrampolineStats).add(millis);
+        if (LOGV) {
+            Log.v(TAG, "transition to " + intent.getStringExtra(EXTRA_ACTION_ID) + " took "
+                    + millis + "ms" + (direct ? "" : " via WizardManager"));
+        }
+    }
+
+    public static void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "WizardNavigator direct: " + sDirectStats);
+        writer.println(prefix + "WizardNavigator trampoline: " + sTrampolineStats);
+    }
+
+    static Intent getActionIntent(String scriptUri, WizardAction action, Intent extras) {
+        Intent intent = action.getIntent();
+        intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
+        if (LOGV) {
+            Log.v(TAG, "getActionIntent scriptUri=" + scriptUri + " extras=" + extras
+                    + " intent=" + intent + " extras2=" + intent.getExtras() + " action="
+                    + action);
+        }
+
+        intent.putExtra(WizardManagerHelper.EXTRA_IS_FIRST_RUN, true);
+        intent.putExtra(WizardManagerHelper.EXTRA_THEME, ThemeHelper.THEME_GLIF_V3_LIGHT);
+        if (extras != null) {
+            intent.putExtras(extras);
+        }
+
+        intent.putExtra(EXTRA_SCRIPT_URI, scriptUri);
+        intent.putExtra(EXTRA_ACTION_ID, action.getId());
+        return intent;
+    }
+
+    static WizardAction resolveFirstAction(Context context, WizardScript wizardScript) {
+        WizardGraph graph = wizardScript.getGraph();
+        return graph.getAction(findAvailableAction(context, graph, graph.getFirstAction()));
+    }
+
+    static WizardAction resolveNextAction(Context context, String scriptUri, String actionId,
+            int resultCode) {
+        if (LOGV) {
+            Log.v(TAG, "resolveNextAction scriptUri=" + scriptUri + " actionId="
+                    + actionId + " resultCode=" + resultCode);
+        }
+
+        WizardScript wizardScript = WizardScriptRegistry.get(context, scriptUri);
+        if (wizardScript == null) {
+            // Nowhere to go without the script, the caller exits the wizard.
+            Log.e(TAG, "resolveNextAction could not load scriptUri=" + scriptUri);
+            return null;
+        }
+        WizardGraph graph = wizardScript.getGraph();
+        WizardAction wizardAction = graph.getAction(findAvailableAction(context, graph,
+                graph.getNextAction(graph.indexOf(actionId), resultCode)));
+
+        if (LOGV) {
+            Log.v(TAG, "resolveNextAction action=" + wizardAction);
+        }
+
+        return wizardAction;
+    }
+
+    /**
+     * Follows RESULT_ACTIVITY_NOT_FOUND transitions from the given action until one that
+     * resolves is found. A script can't skip more actions than it has, which also stops
+     * a cycle of unavailable actions from spinning forever.
+     */
+    private static int findAvailableAction(Context context, WizardGraph graph, int index) {
+        final ActionAvailabilityCache cache = ActionAvailabilityCache.getInstance(context);
+        for (int hops = 0; index != WizardGraph.NO_ACTION && hops < graph.size(); hops++) {
+            if (cache.isAvailable(graph.getAction(index))) {
+                return index;
+            }
+            if (LOGV) {
+                Log.v(TAG, "action not available " + graph.getAction(index));
+            }
+            index = graph.getNextAction(index, ResultCodes.RESULT_ACTIVITY_NOT_FOUND);
+        }
+        return WizardGraph.NO_ACTION;
+    }
+
+    static void exit(Context context, String scriptUri) {
+        if (LOGV) {
+            Log.v(TAG, "exit scriptUri=" + scriptUri
+                    + " uriParses=" + WizardAction.getUriParseCount()
+                    + " intentCopies=" + WizardAction.getIntentCopyCount()
+                    + " scriptLoads=" + WizardScriptRegistry.getLoadCount()
+                    + " direct: " + sDirectStats + " trampoline: " + sTrampolineStats);
+        }
+        WizardScriptRegistry.remove(context, scriptUri);
+        ActionAvailabilityCache.onSetupFinished();
+        SetupWizardUtils.disableComponent(context, WizardManager.class);
+    }
+}
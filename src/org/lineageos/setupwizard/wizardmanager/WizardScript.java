@@ -33,12 +33,14 @@ import com.android.internal.util.XmlUtils;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 public class WizardScript implements Parcelable {
@@ -59,18 +61,36 @@ public class WizardScript implements Parcelable {
 
     private final Map<String, WizardAction> mActions;
     private final String mFirstActionId;
+    private final WizardGraph mGraph;
 
     public WizardScript(Map<String, WizardAction> actions, String firstActionId) {
+        this(WizardGraph.build(actions.values(), firstActionId), firstActionId);
+    }
+
+    WizardScript(WizardGraph graph, String firstActionId) {
+        LinkedHashMap<String, WizardAction> actions = new LinkedHashMap<>(graph.size() * 2);
+        for (int i = 0; i < graph.size(); i++) {
+            actions.put(graph.getAction(i).getId(), graph.getAction(i));
+        }
         mActions = Collections.unmodifiableMap(actions);
         mFirstActionId = firstActionId;
+        mGraph = graph;
+    }
+
+    public WizardGraph getGraph() {
+        return mGraph;
     }
 
     public WizardAction getAction(String actionId) {
         return mActions.get(actionId);
     }
 
+    public Collection<WizardAction> getActions() {
+        return mActions.values();
+    }
+
     public WizardAction getFirstAction() {
-        return getAction(mFirstActionId);
+        return mGraph.getAction(mGraph.getFirstAction());
     }
 
     public String getFirstActionId() {
@@ -78,33 +98,31 @@ public class WizardScript implements Parcelable {
     }
 
     public WizardAction getNextAction(String currentActionId, int resultCode) {
-        WizardAction wizardAction = null;
-        String nextActionId = getNextActionId(currentActionId, resultCode);
-        if (nextActionId != null) {
-            wizardAction = getAction(nextActionId);
-        }
-        return wizardAction;
+        return mGraph.getAction(getNextActionIndex(currentActionId, resultCode));
     }
 
     public String getNextActionId(String currentActionId, int resultCode) {
-        String nextActionId = null;
-        if (resultCode != Activity.RESULT_CANCELED) {
-            WizardAction wizardAction = mActions.get(currentActionId);
-            if (LOGV) {
-                StringBuilder currentAction =
-                        new StringBuilder().append("getNextActionId(").append(currentActionId)
-                                .append(",").append(resultCode).append(")").append(" current uri=");
-                String uri = wizardAction == null ? "n/a" : wizardAction.getUri();
-                Log.v(TAG, currentAction.append(uri).toString());
-            }
-            nextActionId = wizardAction.getNextAction(resultCode);
-        } else {
+        WizardAction wizardAction =
+                mGraph.getAction(getNextActionIndex(currentActionId, resultCode));
+        return wizardAction != null ? wizardAction.getId() : null;
+    }
+
+    private int getNextActionIndex(String currentActionId, int resultCode) {
+        if (resultCode == Activity.RESULT_CANCELED) {
             if (LOGV) {
                 Log.v(TAG, "getNextActionId(" + currentActionId + "," + resultCode
                         + ")" + " RESULT_CANCELED not expected; ignored");
             }
+            return WizardGraph.NO_ACTION;
+        }
+        final int current = mGraph.indexOf(currentActionId);
+        if (LOGV) {
+            WizardAction wizardAction = mGraph.getAction(current);
+            String uri = wizardAction == null ? "n/a" : wizardAction.getUri();
+            Log.v(TAG, "getNextActionId(" + currentActionId + "," + resultCode + ")"
+                    + " current uri=" + uri);
         }
-        return nextActionId;
+        return mGraph.getNextAction(current, resultCode);
     }
 
     public int describeContents() {
@@ -112,20 +130,28 @@ public class WizardScript implements Parcelable {
     }
 
     public void writeToParcel(Parcel dest, int flags) {
-        dest.writeString(this.mFirstActionId);
-        dest.writeTypedList(new ArrayList(this.mActions.values()));
+        dest.writeString(mFirstActionId);
+        mGraph.writeToParcel(dest, flags);
+    }
+
+    /**
+     * Writes the script in the form {@link #readFrom(DataInputStream)} reads back.
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeUTF(mFirstActionId);
+        mGraph.writeTo(out);
+    }
+
+    static WizardScript readFrom(DataInputStream in) throws IOException {
+        final String firstActionId = in.readUTF();
+        return new WizardScript(WizardGraph.readFrom(in), firstActionId);
     }
 
     public static final Creator<WizardScript> CREATOR = new Creator<WizardScript>() {
         public WizardScript createFromParcel(Parcel source) {
             String firstActionId = source.readString();
-            HashMap<String, WizardAction> actions = new HashMap();
-            ArrayList<WizardAction> actionList = new ArrayList();
-            source.readTypedList(actionList, WizardAction.CREATOR);
-            for (WizardAction action : actionList) {
-                actions.put(action.getId(), action);
-            }
-            return new WizardScript(actions, firstActionId);
+            return new WizardScript(WizardGraph.CREATOR.createFromParcel(source),
+                    firstActionId);
         }
 
         public WizardScript[] newArray(int size) {
@@ -137,9 +163,16 @@ public class WizardScript implements Parcelable {
         XmlPullParser xmlPullParser;
         WizardScript wizardScript = null;
         try {
+            final Uri uri = Uri.parse(uriString);
             ContentResolver.OpenResourceIdResult openResourceIdResult =
-                    context.getContentResolver().getResourceId(Uri
-                            .parse(uriString));
+                    context.getContentResolver().getResourceId(uri);
+            // Only our own scripts are compiled, and their ids are only known to us.
+            if (context.getPackageName().equals(uri.getAuthority())) {
+                wizardScript = loadCompiled(openResourceIdResult, uriString);
+                if (wizardScript != null) {
+                    return wizardScript;
+                }
+            }
             if ("xml".equals(openResourceIdResult.r.getResourceTypeName(openResourceIdResult.id))) {
                 xmlPullParser =
                         openResourceIdResult.r.getXml(openResourceIdResult.id);
@@ -175,6 +208,26 @@ public class WizardScript implements Parcelable {
         }
     }
 
+    private static WizardScript loadCompiled(ContentResolver.OpenResourceIdResult resource,
+            String uriString) {
+        final int compiledId = CompiledWizardScript.getCompiledResourceId(resource.r,
+                resource.id);
+        if (compiledId == 0) {
+            return null;
+        }
+        try {
+            WizardScript wizardScript = CompiledWizardScript.load(resource.r, compiledId);
+            if (LOGV) {
+                Log.v(TAG, "Loaded compiled wizard_script: " + uriString);
+            }
+            return wizardScript;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to load compiled wizard_script, falling back to XML: "
+                    + uriString, e);
+            return null;
+        }
+    }
+
     private static WizardScript parseWizardScript(XmlPullParser parser)
             throws XmlPullParserException, IOException {
         String startTag = parser.getName();
@@ -189,13 +242,12 @@ public class WizardScript implements Parcelable {
             throw new XmlPullParserException("WizardScript must define a firstAction");
         }
 
-        HashMap wizardActions = new HashMap();
+        LinkedHashMap<String, WizardAction> wizardActions = new LinkedHashMap<>();
         int type;
         final int depth = parser.getDepth();
         while (((type = parser.next()) != XmlPullParser.END_TAG ||
                 parser.getDepth() > depth) && type != XmlPullParser.END_DOCUMENT) {
-            final int next = parser.next();
-            if (next != XmlPullParser.END_TAG || next != XmlPullParser.TEXT) {
+            if (type == XmlPullParser.START_TAG) {
                 if (TAG_WIZARD_ACTION.equals(parser.getName())) {
                     WizardAction action = WizardAction.parseWizardAction(parser);
                     if (action != null) {
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.setupwizard.wizardmanager;
+
+import static org.lineageos.setupwizard.SetupWizardApp.LOGV;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import org.lineageos.setupwizard.util.TaskScheduler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * On-disk copy of parsed wizard scripts, so that a process killed mid-setup does not have to
+ * parse its script again on the next ACTION_NEXT.
+ *
+ * Each script is stored in its own file in the no-backup files dir, written with a
+ * DataOutputStream behind a header of the format version, the build fingerprint, the APK
+ * modification time and the script URI. A file whose header doesn't match the running APK is
+ * ignored and deleted. Nothing here should run on the main thread: {@link #load} is only
+ * called off it, and {@link #save} and {@link #remove} queue their work on a lane, in order.
+ */
+final class WizardScriptCache {
+
+    private static final String TAG = WizardScriptCache.class.getSimpleName();
+
+    // Writes and deletes run one at a time, in the order they were requested.
+    private static final String LANE = TAG;
+
+    private static final String DIR_NAME = "wizard_scripts";
+    private static final int VERSION = 2;
+
+    private WizardScriptCache() {
+    }
+
+    private static File getFile(Context context, String scriptUri) {
+        return new File(new File(context.getNoBackupFilesDir(), DIR_NAME),
+                Integer.toHexString(scriptUri.hashCode()) + ".script");
+    }
+
+    /**
+     * @return When the running APK was installed or updated. Read from the file itself rather
+     * than asking the PackageManager for it.
+     */
+    private static long getApkModifiedTime(Context context) {
+        return new File(context.getApplicationInfo().sourceDir).lastModified();
+    }
+
+    static synchronized WizardScript load(Context context, String scriptUri) {
+        final AtomicFile file = new AtomicFile(getFile(context, scriptUri));
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(file.readFully()))) {
+            if (in.readInt() != VERSION || !Build.FINGERPRINT.equals(in.readUTF())
+                    || in.readLong() != getApkModifiedTime(context)
+                    || !scriptUri.equals(in.readUTF())) {
+                if (LOGV) {
+                    Log.v(TAG, "Discarding stale cached wizard_script: " + scriptUri);
+                }
+                file.delete();
+                return null;
+            }
+            WizardScript wizardScript = WizardScript.readFrom(in);
+            if (LOGV) {
+                Log.v(TAG, "Loaded cached wizard_script: " + scriptUri);
+            }
+            return wizardScript;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Unable to read cached wizard_script: " + scriptUri, e);
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Writes the script in the background, whether it was parsed from XML or decoded from its
+     * compiled form. Reading it back skips resolving the script URI through the ContentResolver
+     * and the resource lookups behind it.
+     */
+    static void save(Context context, String scriptUri, WizardScript wizardScript) {
+        TaskScheduler.getInstance().runOnLane(LANE, "WizardScriptCache.save",
+                () -> write(context, scriptUri, wizardScript));
+    }
+
+    private static synchronized void write(Context context, String scriptUri,
+            WizardScript wizardScript) {
+        final File target = getFile(context, scriptUri);
+        if (!target.getParentFile().isDirectory() && !target.getParentFile().mkdirs()) {
+            Log.w(TAG, "Unable to create " + target.getParentFile());
+            return;
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final AtomicFile file = new AtomicFile(target);
+        FileOutputStream out = null;
+        try (DataOutputStream data = new DataOutputStream(bytes)) {
+            data.writeInt(VERSION);
+            data.writeUTF(Build.FINGERPRINT);
+            data.writeLong(getApkModifiedTime(context));
+            data.writeUTF(scriptUri);
+            wizardScript.writeTo(data);
+            data.flush();
+            out = file.startWrite();
+            out.write(bytes.toByteArray());
+            file.finishWrite(out);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write cached wizard_script: " + scriptUri, e);
+            if (out != null) {
+                file.failWrite(out);
+            }
+        }
+    }
+
+    static void remove(Context context, String scriptUri) {
+        TaskScheduler.getInstance().runOnLane(LANE, "WizardScriptCache.remove", () -> {
+            synchronized (WizardScriptCache.class) {
+                new AtomicFile(getFile(context, scriptUri)).delete();
+            }
+        });
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.setupwizard.wizardmanager;
+
+import static org.lineageos.setupwizard.SetupWizardApp.LOGV;
+
+import android.content.Context;
+import android.os.Looper;
+import android.util.Log;
+
+import org.lineageos.setupwizard.util.TaskScheduler;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process wide registry of loaded wizard scripts.
+ *
+ * Lookups of a script that finished loading are a single map read. The first caller for a
+ * URI loads the script on its own thread; concurrent callers for the same URI block on that
+ * load instead of parsing the script again.
+ *
+ * The on-disk {@link WizardScriptCache} is only read by loads running off the main thread. A
+ * screen that comes back after the process was killed starts such a load with
+ * {@link #prefetch}, ahead of the ACTION_NEXT that needs the script.
+ */
+final class WizardScriptRegistry {
+
+    private static final String TAG = WizardScriptRegistry.class.getSimpleName();
+
+    private static final ConcurrentHashMap<String, FutureTask<WizardScript>> sScripts =
+            new ConcurrentHashMap<>();
+
+    private static final AtomicInteger sLoadCount = new AtomicInteger();
+
+    interface Loader {
+        WizardScript load(Context context, String scriptUri);
+    }
+
+    private WizardScriptRegistry() {
+    }
+
+    static WizardScript get(Context context, String scriptUri) {
+        return get(context, scriptUri, WizardScriptRegistry::load);
+    }
+
+    /**
+     * Returns the script of the given URI, loading it with the given loader unless it was
+     * loaded or is being loaded already.
+     *
+     * @return The script, or null if the URI is null or the script could not be loaded.
+     */
+    static WizardScript get(Context context, String scriptUri, Loader loader) {
+        if (scriptUri == null) {
+            Log.e(TAG, "No wizard_script URI");
+            return null;
+        }
+        FutureTask<WizardScript> task = sScripts.get(scriptUri);
+        if (task == null) {
+            final Context appContext = context.getApplicationContext();
+            final FutureTask<WizardScript> newTask =
+                    new FutureTask<>(() -> loader.load(appContext, scriptUri));
+            task = sScripts.putIfAbsent(scriptUri, newTask);
+            if (task == null) {
+                task = newTask;
+                task.run();
+            }
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    // Navigation can't proceed without the script, finish waiting for it.
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            // Let the next caller retry rather than caching the failure.
+            sScripts.remove(scriptUri, task);
+            Log.e(TAG, "Unable to load wizard_script: " + scriptUri, e.getCause());
+            return null;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Loads the script of the given URI in the background, unless it was loaded or is being
+     * loaded already.
+     */
+    static void prefetch(Context context, String scriptUri) {
+        if (scriptUri == null || sScripts.containsKey(scriptUri)) {
+            return;
+        }
+        final Context appContext = context.getApplicationContext();
+        TaskScheduler.getInstance().runInBackground("WizardScriptRegistry.prefetch",
+                () -> get(appContext, scriptUri));
+    }
+
+    static void remove(Context context, String scriptUri) {
+        if (scriptUri == null) {
+            return;
+        }
+        sScripts.remove(scriptUri);
+        WizardScriptCache.remove(context, scriptUri);
+    }
+
+    /**
+     * @return The number of scripts loaded from disk or resources in this process.
+     */
+    static int getLoadCount() {
+        return sLoadCount.get();
+    }
+
+    private static WizardScript load(Context context, String scriptUri) {
+        sLoadCount.incrementAndGet();
+        // Reading the file is left to background loads, a main thread one parses right away.
+        WizardScript wizardScript = Looper.getMainLooper().isCurrentThread() ? null
+                : WizardScriptCache.load(context, scriptUri);
+        if (wizardScript == null) {
+            wizardScript = WizardScript.loadFromUri(context, scriptUri);
+            if (wizardScript != null) {
+                WizardScriptCache.save(context, scriptUri, wizardScript);
+            }
+        }
+        if (LOGV) {
+            Log.v(TAG, "load scriptUri=" + scriptUri + " loads=" + sLoadCount.get());
+        }
+        return wizardScript;
+    }
+}
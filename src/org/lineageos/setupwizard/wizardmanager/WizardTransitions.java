@@ -52,6 +52,10 @@ public class WizardTransitions extends SparseArray<String> implements Parcelable
         mDefaultAction = action;
     }
 
+    public String getDefaultAction() {
+        return mDefaultAction;
+    }
+
     public String getAction(int resultCode) {
         return get(resultCode, mDefaultAction);
     }
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.setupwizard;
+
+import static org.junit.Assert.assertEquals;
+
+import android.app.Activity;
+import android.content.Intent;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Drives onActivityResult of the screens with the results the next action may return. Only
+ * RESULT_CANCELED means the user came back; a forward result passed up by a chained screen
+ * moves on with that result.
+ */
+@RunWith(AndroidJUnit4.class)
+public class NextRequestResultTest {
+
+    /**
+     * Records the navigation instead of performing it, the activities are never attached.
+     */
+    public static class RecordingActivity extends BaseSetupWizardActivity {
+        final List<Integer> mNextActions = new ArrayList<>();
+        int mBackwardTransitions;
+
+        @Override
+        protected void nextAction(int resultCode, Intent data) {
+            mNextActions.add(resultCode);
+        }
+
+        @Override
+        protected void applyBackwardTransition(int transitionId) {
+            mBackwardTransitions++;
+        }
+    }
+
+    public static class RecordingSubActivity extends SubBaseActivity {
+        final List<Integer> mNextActions = new ArrayList<>();
+        int mBackwardTransitions;
+        int mSubactivityStarts;
+
+        @Override
+        protected void onStartSubactivity() {
+            mSubactivityStarts++;
+        }
+
+        @Override
+        protected void nextAction(int resultCode, Intent data) {
+            mNextActions.add(resultCode);
+        }
+
+        @Override
+        protected void applyBackwardTransition(int transitionId) {
+            mBackwardTransitions++;
+        }
+    }
+
+    private static <T> T onMain(Supplier<T> supplier) {
+        final List<T> result = new ArrayList<>(1);
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(
+                () -> result.add(supplier.get()));
+        return result.get(0);
+    }
+
+    @Test
+    public void forwardResultMovesOn() {
+        for (int resultCode : new int[] { Activity.RESULT_OK, Activity.RESULT_FIRST_USER }) {
+            final RecordingActivity activity = onMain(() -> {
+                final RecordingActivity created = new RecordingActivity();
+                created.onActivityResult(BaseSetupWizardActivity.NEXT_REQUEST, resultCode,
+                        null);
+                return created;
+            });
+            assertEquals(List.of(resultCode), activity.mNextActions);
+            assertEquals(0, activity.mBackwardTransitions);
+        }
+    }
+
+    @Test
+    public void canceledResultComesBack() {
+        final RecordingActivity activity = onMain(() -> {
+            final RecordingActivity created = new RecordingActivity();
+            created.onActivityResult(BaseSetupWizardActivity.NEXT_REQUEST,
+                    Activity.RESULT_CANCELED, null);
+            return created;
+        });
+        assertEquals(List.of(), activity.mNextActions);
+    }
+
+    @Test
+    public void subactivityScreenMovesOnWithForwardResult() {
+        final RecordingSubActivity activity = onMain(() -> {
+            final RecordingSubActivity created = new RecordingSubActivity();
+            created.onActivityResult(BaseSetupWizardActivity.NEXT_REQUEST, Activity.RESULT_OK,
+                    null);
+            return created;
+        });
+        assertEquals(List.of(Activity.RESULT_OK), activity.mNextActions);
+        assertEquals(0, activity.mSubactivityStarts);
+        assertEquals(0, activity.mBackwardTransitions);
+    }
+
+    @Test
+    public void subactivityScreenRestartsWhenUserComesBack() {
+        final RecordingSubActivity activity = onMain(() -> {
+            final RecordingSubActivity created = new RecordingSubActivity();
+            created.onActivityResult(BaseSetupWizardActivity.NEXT_REQUEST,
+                    Activity.RESULT_CANCELED, null);
+            return created;
+        });
+        assertEquals(List.of(), activity.mNextActions);
+        assertEquals(1, activity.mSubactivityStarts);
+        assertEquals(1, activity.mBackwardTransitions);
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.setupwizard.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.SystemClock;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(AndroidJUnit4.class)
+public class CaptivePortalProbeTest {
+
+    // Well below the shortest probe timeout, so a stalled probe can't be what decided.
+    private static final long DECISION_MILLIS = 900;
+    private static final long RESULT_TIMEOUT_SECONDS = 30;
+
+    private static final int STALL = -1;
+
+    /**
+     * A local HTTP server answering every request with the same status, or never answering.
+     */
+    private static final class StandInServer {
+        private final ServerSocket mServerSocket;
+        private final int mStatus;
+        private final List<Socket> mSockets = new ArrayList<>();
+        private final AtomicInteger mRequestCount = new AtomicInteger();
+        private final CountDownLatch mClientClosed = new CountDownLatch(1);
+        private volatile boolean mClosed;
+
+        StandInServer(int status) throws IOException {
+            mStatus = status;
+            mServerSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            final Thread thread = new Thread(this::acceptLoop, "StandInServer-" + status);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        URL getUrl() throws IOException {
+            return new URL("http", mServerSocket.getInetAddress().getHostAddress(),
+                    mServerSocket.getLocalPort(), "/generate_204");
+        }
+
+        int getRequestCount() {
+            return mRequestCount.get();
+        }
+
+        /**
+         * @return Whether a client hung up on a request that was never answered.
+         */
+        boolean awaitClientClosed(long seconds) throws InterruptedException {
+            return mClientClosed.await(seconds, TimeUnit.SECONDS);
+        }
+
+        private void acceptLoop() {
+            while (!mClosed) {
+                try {
+                    final Socket socket = mServerSocket.accept();
+                    synchronized (mSockets) {
+                        mSockets.add(socket);
+                    }
+                    final Thread thread = new Thread(() -> serve(socket));
+                    thread.setDaemon(true);
+                    thread.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void serve(Socket socket) {
+            try {
+                final BufferedReader in = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                String line;
+                while ((line = in.readLine()) != null && !line.isEmpty()) {
+                    // Skip the request line and the headers.
+                }
+                mRequestCount.incrementAndGet();
+                if (mStatus == STALL) {
+                    // Hold the request until the client gives up on it.
+                    while (in.read() != -1) {
+                    }
+                    mClientClosed.countDown();
+                    return;
+                }
+                final StringBuilder response = new StringBuilder()
+                        .append("HTTP/1.1 ").append(mStatus).append(" Stand-in\r\n")
+                        .append("Content-Length: 0\r\n")
+                        .append("Connection: close\r\n");
+                if (mStatus >= 300 && mStatus < 400) {
+                    response.append("Location: http://portal.example.com/login\r\n");
+                }
+                response.append("\r\n");
+                final OutputStream out = socket.getOutputStream();
+                out.write(response.toString().getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+            } catch (IOException e) {
+                mClientClosed.countDown();
+            } finally {
+                if (mStatus != STALL) {
+                    closeQuietly(socket);
+                }
+            }
+        }
+
+        void close() {
+            mClosed = true;
+            closeQuietly(mServerSocket);
+            synchronized (mSockets) {
+                for (Socket socket : mSockets) {
+                    closeQuietly(socket);
+                }
+            }
+        }
+
+        private static void closeQuietly(AutoCloseable closeable) {
+            try {
+                closeable.close();
+            } catch (Exception e) {
+                // Nothing to do.
+            }
+        }
+    }
+
+    private final List<StandInServer> mServers = new ArrayList<>();
+
+    private StandInServer startServer(int status) throws IOException {
+        final StandInServer server = new StandInServer(status);
+        mServers.add(server);
+        return server;
+    }
+
+    @After
+    public void tearDown() {
+        for (StandInServer server : mServers) {
+            server.close();
+        }
+    }
+
+    private static final class Result {
+        final CountDownLatch mLatch = new CountDownLatch(1);
+        volatile boolean mPortal;
+        volatile long mMillis;
+    }
+
+    private static Result run(CaptivePortalProbe probe) throws InterruptedException {
+        final Result result = new Result();
+        final long start = SystemClock.elapsedRealtime();
+        probe.addListener(portal -> {
+            result.mPortal = portal;
+            result.mMillis = SystemClock.elapsedRealtime() - start;
+            result.mLatch.countDown();
+        }, Runnable::run);
+        probe.start();
+        assertTrue("no result", result.mLatch.await(RESULT_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(probe.isDone());
+        return result;
+    }
+
+    private Result probeHttp(int status) throws Exception {
+        final StandInServer server = startServer(status);
+        final Result result = run(new CaptivePortalProbe(null, server.getUrl(), null, null));
+        assertEquals(1, server.getRequestCount());
+        return result;
+    }
+
+    @Test
+    public void noContentMeansNoPortal() throws Exception {
+        assertFalse(probeHttp(204).mPortal);
+    }
+
+    @Test
+    public void redirectMeansPortal() throws Exception {
+        assertTrue(probeHttp(302).mPortal);
+    }
+
+    @Test
+    public void requestTimeoutMeansPortal() throws Exception {
+        assertTrue(probeHttp(408).mPortal);
+    }
+
+    @Test
+    public void gatewayTimeoutMeansPortal() throws Exception {
+        assertTrue(probeHttp(504).mPortal);
+    }
+
+    @Test
+    public void fallbackAnswerDecidesWhileHttpProbeStalls() throws Exception {
+        final StandInServer stalled = startServer(STALL);
+        final StandInServer fallback = startServer(204);
+        final Result result = run(new CaptivePortalProbe(null, stalled.getUrl(), null,
+                fallback.getUrl()));
+
+        assertFalse(result.mPortal);
+        assertTrue("took " + result.mMillis + "ms", result.mMillis < DECISION_MILLIS);
+        assertTrue("stalled probe not cancelled", stalled.awaitClientClosed(5));
+    }
+
+    @Test
+    public void portalAnswerDecidesWhileFallbackStalls() throws Exception {
+        final StandInServer redirect = startServer(302);
+        final StandInServer stalled = startServer(STALL);
+        final Result result = run(new CaptivePortalProbe(null, redirect.getUrl(), null,
+                stalled.getUrl()));
+
+        assertTrue(result.mPortal);
+        assertTrue("took " + result.mMillis + "ms", result.mMillis < DECISION_MILLIS);
+        assertTrue("stalled probe not cancelled", stalled.awaitClientClosed(5));
+    }
+
+    @Test
+    public void plainServerIsNotConclusiveForHttpsProbe() throws Exception {
+        // The handshake fails against a plain HTTP server, which is no answer for HTTPS, so
+        // the portal redirect must not be taken for one.
+        final StandInServer plain = startServer(302);
+        final URL httpsUrl = new URL("https", plain.getUrl().getHost(),
+                plain.getUrl().getPort(), "/generate_204");
+        final Result result = run(new CaptivePortalProbe(null, null, httpsUrl, null));
+
+        assertFalse(result.mPortal);
+    }
+
+    @Test
+    public void everyProbeStalledEndsAsNoPortal() throws Exception {
+        final StandInServer http = startServer(STALL);
+        final StandInServer fallback = startServer(STALL);
+        final Result result = run(new CaptivePortalProbe(null, http.getUrl(), null,
+                fallback.getUrl()));
+
+        assertFalse(result.mPortal);
+        assertTrue(http.awaitClientClosed(5));
+        assertTrue(fallback.awaitClientClosed(5));
+    }
+
+    @Test
+    public void cancelStopsStalledProbes() throws Exception {
+        final StandInServer stalled = startServer(STALL);
+        final CaptivePortalProbe probe = new CaptivePortalProbe(null, stalled.getUrl(), null,
+                null);
+        final AtomicInteger results = new AtomicInteger();
+        probe.addListener(portal -> results.incrementAndGet(), Runnable::run);
+        probe.start();
+        while (stalled.getRequestCount() == 0) {
+            SystemClock.sleep(10);
+        }
+        probe.cancel();
+
+        assertTrue("stalled probe not cancelled", stalled.awaitClientClosed(5));
+        assertTrue(probe.isDone());
+        assertEquals(0, results.get());
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.setupwizard.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.app.Instrumentation;
+import android.view.Choreographer;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(AndroidJUnit4.class)
+public class CoalescingDispatcherTest {
+
+    private static final int EVENTS = 1000;
+    private static final int KEYS = 10;
+
+    private interface Recorder {
+        void onEvent(int key, int value);
+    }
+
+    private Instrumentation mInstrumentation;
+    private CoalescingDispatcher<Recorder> mDispatcher;
+    // Only touched on the main thread, read once the frames ran.
+    private final List<int[]> mDelivered = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mInstrumentation = InstrumentationRegistry.getInstrumentation();
+        mDispatcher = new CoalescingDispatcher<>();
+        mDispatcher.addListener((key, value) -> mDelivered.add(new int[] { key, value }), null);
+    }
+
+    private void post(Object key, int keyValue, int value) {
+        mDispatcher.post(key, recorder -> recorder.onEvent(keyValue, value));
+    }
+
+    /**
+     * Waits for the frame that delivers the events posted so far.
+     */
+    private void awaitFrame() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        // Frame callbacks run in the order they were posted, after the dispatcher's.
+        mInstrumentation.runOnMainSync(() ->
+                Choreographer.getInstance().postFrameCallback(frameTimeNanos -> latch.countDown()));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void burstWithinAFrameDeliversLatestValuePerKeyOnce() throws Exception {
+        mInstrumentation.runOnMainSync(() -> {
+            for (int i = 0; i < EVENTS; i++) {
+                post(i % KEYS, i % KEYS, i);
+            }
+        });
+        awaitFrame();
+
+        assertEquals(EVENTS, mDispatcher.getPostCount());
+        assertEquals(1, mDispatcher.getFrameCount());
+        assertEquals(KEYS, mDispatcher.getDeliveryCount());
+        assertEquals(KEYS, mDelivered.size());
+        for (int[] event : mDelivered) {
+            assertEquals("latest value of key " + event[0], EVENTS - KEYS + event[0], event[1]);
+        }
+    }
+
+    @Test
+    public void burstFromBackgroundStaysBoundedByFrames() throws Exception {
+        final Thread poster = new Thread(() -> {
+            for (int i = 0; i < EVENTS; i++) {
+                post(i % KEYS, i % KEYS, i);
+            }
+        });
+        poster.start();
+        poster.join();
+        awaitFrame();
+
+        final int frames = mDispatcher.getFrameCount();
+        assertTrue("frames=" + frames, frames >= 1);
+        assertTrue("deliveries=" + mDispatcher.getDeliveryCount() + " frames=" + frames,
+                mDispatcher.getDeliveryCount() <= frames * KEYS);
+        final int[] last = new int[KEYS];
+        for (int[] event : mDelivered) {
+            last[event[0]] = event[1];
+        }
+        for (int key = 0; key < KEYS; key++) {
+            assertEquals("last value of key " + key, EVENTS - KEYS + key, last[key]);
+        }
+    }
+
+    @Test
+    public void replacedEventMovesAfterOlderEventsOfOtherKeys() throws Exception {
+        mInstrumentation.runOnMainSync(() -> {
+            post("a", 1, 1);
+            post("b", 2, 2);
+            post("a", 1, 3);
+        });
+        awaitFrame();
+
+        assertEquals(2, mDelivered.size());
+        assertEquals(Arrays.toString(new int[] { 2, 2 }), Arrays.toString(mDelivered.get(0)));
+        assertEquals(Arrays.toString(new int[] { 1, 3 }), Arrays.toString(mDelivered.get(1)));
+    }
+
+    @Test
+    public void eventsWithoutKeyAreAllDeliveredInOrder() throws Exception {
+        mInstrumentation.runOnMainSync(() -> {
+            for (int i = 0; i < KEYS; i++) {
+                post(null, 0, i);
+            }
+        });
+        awaitFrame();
+
+        assertEquals(KEYS, mDelivered.size());
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(i, mDelivered.get(i)[1]);
+        }
+    }
+
+    @Test
+    public void listenerRemovedDuringDispatchGetsNoFurtherEvents() throws Exception {
+        final int[] removedCount = new int[1];
+        final Recorder[] removing = new Recorder[1];
+        removing[0] = (key, value) -> {
+            removedCount[0]++;
+            mDispatcher.removeListener(removing[0]);
+        };
+        mDispatcher.addListener(removing[0], null);
+        mInstrumentation.runOnMainSync(() -> {
+            for (int i = 0; i < KEYS; i++) {
+                post(i, i, i);
+            }
+        });
+        awaitFrame();
+
+        assertEquals(1, removedCount[0]);
+        assertEquals(KEYS, mDelivered.size());
+    }
+}
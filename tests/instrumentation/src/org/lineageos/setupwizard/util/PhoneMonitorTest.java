@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.setupwizard.util;
+
+import static org.junit.Assert.assertEquals;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class PhoneMonitorTest {
+
+    private PhoneMonitor mPhoneMonitor;
+
+    @Before
+    public void setUp() {
+        mPhoneMonitor = new PhoneMonitor(
+                InstrumentationRegistry.getInstrumentation().getTargetContext());
+    }
+
+    @Test
+    public void releaseUnregistersEveryTracker() {
+        mPhoneMonitor.acquire();
+        mPhoneMonitor.release();
+        assertEquals(mPhoneMonitor.getTrackerRegisterCount(),
+                mPhoneMonitor.getTrackerUnregisterCount());
+    }
+
+    @Test
+    public void subscriptionChangeAfterReleaseRegistersNothing() {
+        mPhoneMonitor.acquire();
+        mPhoneMonitor.release();
+        final int registered = mPhoneMonitor.getTrackerRegisterCount();
+        final int unregistered = mPhoneMonitor.getTrackerUnregisterCount();
+
+        // As if the change was queued on the monitor thread before the release.
+        mPhoneMonitor.mOnSubscriptionsChangedListener.onSubscriptionsChanged();
+
+        assertEquals(registered, mPhoneMonitor.getTrackerRegisterCount());
+        assertEquals(unregistered, mPhoneMonitor.getTrackerUnregisterCount());
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.setupwizard.wizardmanager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(AndroidJUnit4.class)
+public class WizardScriptRegistryTest {
+
+    private static final int THREADS = 16;
+    private static final int SCRIPTS = 8;
+    private static final int ROUNDS = 200;
+    // Long enough for every thread to ask for the script while it is being loaded.
+    private static final long LOAD_MILLIS = 50;
+
+    private Context mContext;
+    private final List<String> mScriptUris = new ArrayList<>();
+    private final ConcurrentHashMap<String, AtomicInteger> mParseCounts =
+            new ConcurrentHashMap<>();
+
+    private final WizardScriptRegistry.Loader mLoader = (context, scriptUri) -> {
+        mParseCounts.computeIfAbsent(scriptUri, uri -> new AtomicInteger()).incrementAndGet();
+        SystemClock.sleep(LOAD_MILLIS);
+        final LinkedHashMap<String, WizardAction> actions = new LinkedHashMap<>();
+        actions.put("first", new WizardAction("first", scriptUri, new WizardTransitions()));
+        return new WizardScript(actions, "first");
+    };
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        // Unique per run, so that nothing is registered for them yet.
+        final long run = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < SCRIPTS; i++) {
+            mScriptUris.add("test://" + run + "/wizard_script_" + i);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (String scriptUri : mScriptUris) {
+            WizardScriptRegistry.remove(mContext, scriptUri);
+        }
+    }
+
+    @Test
+    public void concurrentCallersParseEachScriptOnce() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<List<WizardScript>>> results = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int offset = t;
+            results.add(executor.submit(() -> {
+                start.await();
+                final List<WizardScript> scripts = new ArrayList<>(SCRIPTS);
+                for (int i = 0; i < SCRIPTS; i++) {
+                    scripts.add(null);
+                }
+                for (int round = 0; round < ROUNDS; round++) {
+                    // Every thread walks the scripts in its own order.
+                    final int i = (offset + round) % SCRIPTS;
+                    final WizardScript script =
+                            WizardScriptRegistry.get(mContext, mScriptUris.get(i), mLoader);
+                    assertNotNull(script);
+                    if (scripts.get(i) == null) {
+                        scripts.set(i, script);
+                    }
+                    assertSame(scripts.get(i), script);
+                }
+                return scripts;
+            }));
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+
+        final List<WizardScript> first = results.get(0).get();
+        for (Future<List<WizardScript>> result : results) {
+            final List<WizardScript> scripts = result.get();
+            for (int i = 0; i < SCRIPTS; i++) {
+                assertSame("every caller gets the same script", first.get(i), scripts.get(i));
+            }
+        }
+        for (String scriptUri : mScriptUris) {
+            assertEquals("parses of " + scriptUri, 1, mParseCounts.get(scriptUri).get());
+        }
+    }
+
+    @Test
+    public void failedLoadIsRetried() {
+        final String scriptUri = mScriptUris.get(0);
+        final AtomicInteger attempts = new AtomicInteger();
+        final WizardScriptRegistry.Loader failing = (context, uri) -> {
+            attempts.incrementAndGet();
+            throw new IllegalStateException("failing on purpose");
+        };
+        assertNull(WizardScriptRegistry.get(mContext, scriptUri, failing));
+        assertNotNull(WizardScriptRegistry.get(mContext, scriptUri, mLoader));
+        assertEquals(1, attempts.get());
+        assertEquals(1, mParseCounts.get(scriptUri).get());
+    }
+
+    @Test
+    public void nullUriIsRejected() {
+        assertNull(WizardScriptRegistry.get(mContext, null, mLoader));
+        assertTrue(mParseCounts.isEmpty());
+    }
+}
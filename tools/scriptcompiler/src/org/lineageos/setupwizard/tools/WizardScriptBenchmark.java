@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.setupwizard.tools;
+
+import org.xml.sax.SAXException;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Host benchmark comparing the two formats of a wizard script. It times copies of the loaders
+ * made for the host, not the classes running on device, so it only compares the cost of the
+ * formats.
+ *
+ * The XML loader pulls the script tag by tag into maps of actions and transitions, as
+ * WizardScript.loadFromUri does on device. The compiled loader decodes the blob emitted by
+ * {@link WizardScriptCompiler} into the string and int tables CompiledWizardScript builds the
+ * WizardGraph from, both from a heap buffer (a compressed resource) and from a direct buffer
+ * (a mapped one). The Android classes themselves don't run on the host, so both loaders stop
+ * short of building the framework objects, which they share. The on-device cost also includes
+ * opening the resource, which isn't measured here.
+ *
+ * Usage: SetupWizardScriptBenchmark [-n iterations] wizard_script.xml...
+ */
+public class WizardScriptBenchmark {
+
+    private static final int DEFAULT_ITERATIONS = 20000;
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+    }
+
+    private interface Loader {
+        Object load() throws Exception;
+    }
+
+    private static final class XmlAction {
+        final String mUri;
+        String mDefaultAction;
+        final TreeMap<Integer, String> mTransitions = new TreeMap<>();
+
+        XmlAction(String uri) {
+            mUri = uri;
+        }
+    }
+
+    private static Map<String, XmlAction> loadXml(byte[] xml) throws XMLStreamException {
+        final XMLStreamReader parser = XML_INPUT_FACTORY.createXMLStreamReader(
+                new ByteArrayInputStream(xml));
+        final LinkedHashMap<String, XmlAction> actions = new LinkedHashMap<>();
+        XmlAction current = null;
+        int depth = 0;
+        while (parser.hasNext()) {
+            final int event = parser.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+                final String name = parser.getLocalName();
+                if (depth == 1) {
+                    parser.getAttributeValue(WizardScriptCompiler.WIZARD_SCRIPT_NAMESPACE,
+                            "firstAction");
+                } else if (depth == 2 && "WizardAction".equals(name)) {
+                    current = new XmlAction(parser.getAttributeValue(
+                            WizardScriptCompiler.WIZARD_SCRIPT_NAMESPACE, "uri"));
+                    actions.put(parser.getAttributeValue(null, "id"), current);
+                } else if (depth == 3 && current != null && "result".equals(name)) {
+                    final String resultCode = parser.getAttributeValue(
+                            WizardScriptCompiler.WIZARD_SCRIPT_NAMESPACE, "resultCode");
+                    final String action = parser.getAttributeValue(
+                            WizardScriptCompiler.WIZARD_SCRIPT_NAMESPACE, "action");
+                    if (resultCode == null) {
+                        current.mDefaultAction = action;
+                    } else {
+                        current.mTransitions.put(Integer.valueOf(resultCode), action);
+                    }
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                if (depth == 2) {
+                    current = null;
+                }
+                depth--;
+            }
+        }
+        parser.close();
+        return actions;
+    }
+
+    /**
+     * Decodes a compiled script the way CompiledWizardScript.parse does.
+     */
+    private static Object[] loadCompiled(ByteBuffer buffer) throws IOException {
+        buffer.rewind();
+        if (buffer.getInt() != WizardScriptCompiler.MAGIC
+                || buffer.getInt() != WizardScriptCompiler.VERSION) {
+            throw new IOException("Not a compiled wizard script");
+        }
+        final String[] strings = new String[buffer.getInt()];
+        byte[] scratch = null;
+        for (int i = 0; i < strings.length; i++) {
+            final int length = buffer.getInt();
+            if (buffer.hasArray()) {
+                strings[i] = new String(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                        length, StandardCharsets.UTF_8);
+                buffer.position(buffer.position() + length);
+            } else {
+                if (scratch == null || scratch.length < length) {
+                    scratch = new byte[Math.max(length, 256)];
+                }
+                buffer.get(scratch, 0, length);
+                strings[i] = new String(scratch, 0, length, StandardCharsets.UTF_8);
+            }
+        }
+        final int firstAction = buffer.getInt();
+        final int actionCount = buffer.getInt();
+        final String[] ids = new String[actionCount];
+        final String[] uris = new String[actionCount];
+        final int[][] resultCodes = new int[actionCount][];
+        final int[][] targets = new int[actionCount][];
+        final int[] defaultTargets = new int[actionCount];
+        final int[] actionIndices = new int[strings.length];
+        Arrays.fill(actionIndices, -1);
+        for (int i = 0; i < actionCount; i++) {
+            final int id = buffer.getInt();
+            ids[i] = strings[id];
+            uris[i] = strings[buffer.getInt()];
+            actionIndices[id] = i;
+            defaultTargets[i] = buffer.getInt();
+            final int transitionCount = buffer.getInt();
+            resultCodes[i] = new int[transitionCount];
+            targets[i] = new int[transitionCount];
+            for (int t = 0; t < transitionCount; t++) {
+                resultCodes[i][t] = buffer.getInt();
+            }
+            for (int t = 0; t < transitionCount; t++) {
+                targets[i][t] = buffer.getInt();
+            }
+        }
+        for (int i = 0; i < actionCount; i++) {
+            defaultTargets[i] = defaultTargets[i] >= 0 ? actionIndices[defaultTargets[i]] : -1;
+            for (int t = 0; t < targets[i].length; t++) {
+                targets[i][t] = targets[i][t] >= 0 ? actionIndices[targets[i][t]] : -1;
+            }
+        }
+        return new Object[] { ids, uris, resultCodes, targets, defaultTargets,
+                actionIndices[firstAction] };
+    }
+
+    private static void measure(String name, Loader loader, int iterations) throws Exception {
+        // Let the JIT settle before measuring.
+        for (int i = 0; i < iterations / 4; i++) {
+            loader.load();
+        }
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final boolean countAllocations = threads instanceof com.sun.management.ThreadMXBean;
+        final long threadId = Thread.currentThread().getId();
+        final long startBytes = countAllocations
+                ? ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threadId)
+                : 0;
+        final long start = System.nanoTime();
+        Object sink = null;
+        for (int i = 0; i < iterations; i++) {
+            sink = loader.load();
+        }
+        final long nanos = System.nanoTime() - start;
+        final long bytes = countAllocations
+                ? ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threadId)
+                        - startBytes
+                : -1;
+        System.out.printf("  %-16s %10.2f us/load %10s bytes/load%s%n", name,
+                nanos / 1000.0 / iterations,
+                bytes >= 0 ? String.valueOf(bytes / iterations) : "n/a",
+                sink == null ? " (no result)" : "");
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = DEFAULT_ITERATIONS;
+        int first = 0;
+        if (args.length >= 2 && "-n".equals(args[0])) {
+            iterations = Integer.parseInt(args[1]);
+            first = 2;
+        }
+        if (args.length == first) {
+            System.err.println(
+                    "usage: SetupWizardScriptBenchmark [-n iterations] wizard_script.xml...");
+            System.err.println("Compares the XML and compiled formats with host copies of the"
+                    + " loaders, not the on-device classes.");
+            System.exit(1);
+        }
+        for (int a = first; a < args.length; a++) {
+            final File input = new File(args[a]);
+            final byte[] xml = Files.readAllBytes(input.toPath());
+            final byte[] compiled;
+            try {
+                compiled = WizardScriptCompiler.compile(xml);
+            } catch (SAXException e) {
+                System.out.println(input.getName() + ": not compiled, " + e.getMessage());
+                continue;
+            }
+            final ByteBuffer heap = ByteBuffer.wrap(compiled);
+            final ByteBuffer direct = ByteBuffer.allocateDirect(compiled.length);
+            direct.put(compiled);
+
+            System.out.println(input.getName() + ": " + xml.length + " bytes of XML, "
+                    + compiled.length + " bytes compiled, " + iterations
+                    + " loads (format-only comparison, host copies of the loaders)");
+            measure("xml", () -> loadXml(xml), iterations);
+            measure("compiled", () -> loadCompiled(heap), iterations);
+            measure("compiled mapped", () -> loadCompiled(direct), iterations);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.setupwizard.tools;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+/**
+ * Build time compiler for wizard scripts.
+ *
+ * Turns a res/raw wizard_script XML file into the indexed binary form read by
+ * org.lineageos.setupwizard.wizardmanager.CompiledWizardScript. The layout (big endian) is:
+ *
+ * <pre>
+ *   int    magic, int version
+ *   int    stringCount, then per string: int byteLength, UTF-8 bytes
+ *   int    firstAction (string index)
+ *   int    actionCount, then per action:
+ *            int id, int uri, int defaultTarget (string indices, -1 when absent)
+ *            int transitionCount
+ *            int[transitionCount] resultCodes (ascending)
+ *            int[transitionCount] targets (string indices)
+ * </pre>
+ *
+ * Every id and uri is interned into the string table, so the runtime only decodes each
+ * string once. Keep the constants in sync with CompiledWizardScript.
+ */
+public class WizardScriptCompiler {
+
+    static final int MAGIC = 0x57495a53; // "WIZS"
+    static final int VERSION = 1;
+
+    static final String WIZARD_SCRIPT_NAMESPACE =
+            "http://schemas.android.com/apk/res/com.google.android.setupwizard";
+
+    private static final String TAG_WIZARD_SCRIPT = "WizardScript";
+    private static final String TAG_WIZARD_ACTION = "WizardAction";
+    private static final String TAG_RESULT = "result";
+    private static final String ATTR_ID = "id";
+    private static final String ATTR_URI = "uri";
+    private static final String ATTR_ACTION = "action";
+    private static final String ATTR_FIRST_ACTION = "firstAction";
+    private static final String ATTR_RESULT_CODE = "resultCode";
+
+    private static class Action {
+        final int id;
+        final int uri;
+        int defaultTarget = -1;
+        final TreeMap<Integer, Integer> transitions = new TreeMap<>();
+
+        Action(int id, int uri) {
+            this.id = id;
+            this.uri = uri;
+        }
+    }
+
+    private final List<String> mStrings = new ArrayList<>();
+    private final Map<String, Integer> mStringIndices = new HashMap<>();
+    private final List<Action> mActions = new ArrayList<>();
+    private int mFirstAction = -1;
+
+    private int intern(String value) {
+        if (value == null) {
+            return -1;
+        }
+        Integer index = mStringIndices.get(value);
+        if (index == null) {
+            index = mStrings.size();
+            mStrings.add(value);
+            mStringIndices.put(value, index);
+        }
+        return index;
+    }
+
+    private class ScriptHandler extends DefaultHandler {
+        private int mDepth;
+        private Action mCurrent;
+
+        @Override
+        public void startElement(String uri, String localName, String qName,
+                Attributes attributes) throws SAXException {
+            mDepth++;
+            if (mDepth == 1) {
+                if (!TAG_WIZARD_SCRIPT.equals(localName)) {
+                    throw new SAXException("XML document must start with <WizardScript> tag;"
+                            + " found " + localName);
+                }
+                String firstAction = attributes.getValue(WIZARD_SCRIPT_NAMESPACE,
+                        ATTR_FIRST_ACTION);
+                if (firstAction == null) {
+                    throw new SAXException("WizardScript must define a firstAction");
+                }
+                mFirstAction = intern(firstAction);
+            } else if (mDepth == 2 && TAG_WIZARD_ACTION.equals(localName)) {
+                String id = attributes.getValue("", ATTR_ID);
+                String actionUri = attributes.getValue(WIZARD_SCRIPT_NAMESPACE, ATTR_URI);
+                if (id == null) {
+                    throw new SAXException("WizardAction must define an id");
+                }
+                if (actionUri == null) {
+                    throw new SAXException("WizardAction must define an intent URI");
+                }
+                mCurrent = new Action(intern(id), intern(actionUri));
+                mActions.add(mCurrent);
+            } else if (mDepth == 3 && mCurrent != null && TAG_RESULT.equals(localName)) {
+                String resultCode = attributes.getValue(WIZARD_SCRIPT_NAMESPACE,
+                        ATTR_RESULT_CODE);
+                int target = intern(attributes.getValue(WIZARD_SCRIPT_NAMESPACE, ATTR_ACTION));
+                if (resultCode == null) {
+                    mCurrent.defaultTarget = target;
+                } else {
+                    try {
+                        mCurrent.transitions.put(Integer.valueOf(resultCode), target);
+                    } catch (NumberFormatException e) {
+                        throw new SAXException("Bad resultCode: " + resultCode);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            if (mDepth == 2) {
+                mCurrent = null;
+            }
+            mDepth--;
+        }
+    }
+
+    private void parse(File input) throws IOException, SAXException,
+            ParserConfigurationException {
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        factory.newSAXParser().parse(input, new ScriptHandler());
+    }
+
+    void parse(InputStream input) throws IOException, SAXException,
+            ParserConfigurationException {
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        factory.newSAXParser().parse(input, new ScriptHandler());
+    }
+
+    private void write(File output) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(output))) {
+            write(out);
+        }
+    }
+
+    /**
+     * @return The compiled form of the given script.
+     */
+    static byte[] compile(byte[] xml) throws IOException, SAXException,
+            ParserConfigurationException {
+        WizardScriptCompiler compiler = new WizardScriptCompiler();
+        compiler.parse(new ByteArrayInputStream(xml));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        compiler.write(bytes);
+        return bytes.toByteArray();
+    }
+
+    private void write(OutputStream output) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(output)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(mStrings.size());
+            for (String value : mStrings) {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            out.writeInt(mFirstAction);
+            out.writeInt(mActions.size());
+            for (Action action : mActions) {
+                out.writeInt(action.id);
+                out.writeInt(action.uri);
+                out.writeInt(action.defaultTarget);
+                out.writeInt(action.transitions.size());
+                for (int resultCode : action.transitions.keySet()) {
+                    out.writeInt(resultCode);
+                }
+                for (int target : action.transitions.values()) {
+                    out.writeInt(target);
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("usage: WizardScriptCompiler <wizard_script.xml> <output.bin>");
+            System.exit(1);
+        }
+        File input = new File(args[0]);
+        WizardScriptCompiler compiler = new WizardScriptCompiler();
+        try {
+            compiler.parse(input);
+        } catch (SAXException e) {
+            // Scripts the runtime parser would reject are left uncompiled so that the
+            // device keeps its existing behaviour for them.
+            System.err.println("warning: skipping " + input + ": " + e.getMessage());
+            return;
+        } catch (IOException | ParserConfigurationException e) {
+            System.err.println("error: unable to read " + input + ": " + e);
+            System.exit(1);
+        }
+        try {
+            compiler.write(new File(args[1]));
+        } catch (IOException e) {
+            System.err.println("error: unable to write " + args[1] + ": " + e);
+            System.exit(1);
+        }
+    }
+}